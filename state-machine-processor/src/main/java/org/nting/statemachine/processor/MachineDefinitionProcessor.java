@@ -0,0 +1,68 @@
+package org.nting.statemachine.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+import org.nting.statemachine.annotation.MachineDefinition;
+
+import com.google.common.collect.ImmutableSet;
+
+// Generates <Owner>Definition and <Owner>Dispatcher for the classes annotated with @MachineDefinition. Mistakes in
+// the declared hierarchy and actions are reported as compilation errors.
+public class MachineDefinitionProcessor extends AbstractProcessor {
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return ImmutableSet.of(MachineDefinition.class.getCanonicalName());
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnvironment) {
+        for (Element element : roundEnvironment.getElementsAnnotatedWith(MachineDefinition.class)) {
+            if (element.getKind() != ElementKind.CLASS) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                        "@MachineDefinition is only allowed on classes", element);
+                continue;
+            }
+
+            MachineModel machineModel = new MachineModel((TypeElement) element, processingEnv);
+            if (machineModel.build()) {
+                MachineWriter machineWriter = new MachineWriter(machineModel);
+                write(machineModel, machineModel.getDefinitionName(), machineWriter.writeDefinition());
+                write(machineModel, machineModel.getDispatcherName(), machineWriter.writeDispatcher());
+            }
+        }
+
+        return true;
+    }
+
+    private void write(MachineModel machineModel, String simpleName, String source) {
+        String qualifiedName = machineModel.getPackageName().isEmpty() ? simpleName
+                : machineModel.getPackageName() + "." + simpleName;
+        try {
+            JavaFileObject sourceFile = processingEnv.getFiler().createSourceFile(qualifiedName,
+                    machineModel.getOwner());
+            try (Writer writer = sourceFile.openWriter()) {
+                writer.write(source);
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Failed to write " + qualifiedName + ": " + e.getMessage(), machineModel.getOwner());
+        }
+    }
+}
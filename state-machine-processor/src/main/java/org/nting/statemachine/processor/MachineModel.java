@@ -0,0 +1,327 @@
+package org.nting.statemachine.processor;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+
+import org.nting.statemachine.StateMachineEvent;
+import org.nting.statemachine.annotation.Entry;
+import org.nting.statemachine.annotation.Exit;
+import org.nting.statemachine.annotation.MachineDefinition;
+import org.nting.statemachine.annotation.MachineState;
+import org.nting.statemachine.annotation.Transition;
+
+import com.google.common.base.CaseFormat;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+// The validated and precomputed model of an annotated machine.
+class MachineModel {
+
+    static class StateModel {
+        final String name;
+        final String parentName;
+        final String initialName;
+        final Element element;
+        final int index;
+        int parent = -1;
+        int initial = -1;
+        int depth;
+        final List<String> entryMethods = Lists.newArrayList();
+        final List<String> exitMethods = Lists.newArrayList();
+
+        private StateModel(String name, String parentName, String initialName, Element element, int index) {
+            this.name = name;
+            this.parentName = parentName;
+            this.initialName = initialName;
+            this.element = element;
+            this.index = index;
+        }
+
+        String getConstantName() {
+            return CaseFormat.UPPER_CAMEL.to(CaseFormat.UPPER_UNDERSCORE, name);
+        }
+    }
+
+    static class TransitionModel {
+        final int index;
+        final int source;
+        final int signal;
+        final int target;// -1 for internal transitions
+        final String method;
+        final boolean withEvent;
+        int domain = -1;// states are exited up to this one
+        int[] entryPath = new int[0];// states entered, from the outermost to the target
+
+        private TransitionModel(int index, int source, int signal, int target, String method, boolean withEvent) {
+            this.index = index;
+            this.source = source;
+            this.signal = signal;
+            this.target = target;
+            this.method = method;
+            this.withEvent = withEvent;
+        }
+    }
+
+    private final TypeElement owner;
+    private final ProcessingEnvironment processingEnv;
+
+    private final List<StateModel> states = Lists.newArrayList();
+    private final Map<String, StateModel> statesByName = Maps.newHashMap();
+    private final List<String> signals = Lists.newArrayList();
+    private final List<TransitionModel> transitions = Lists.newArrayList();
+    private boolean valid = true;
+
+    MachineModel(TypeElement owner, ProcessingEnvironment processingEnv) {
+        this.owner = owner;
+        this.processingEnv = processingEnv;
+    }
+
+    // Returns false if any error was reported.
+    boolean build() {
+        MachineDefinition machineDefinition = owner.getAnnotation(MachineDefinition.class);
+        addState(MachineDefinition.TOP_STATE, null, machineDefinition.initial(), owner);
+        for (MachineState machineState : owner.getAnnotationsByType(MachineState.class)) {
+            if (MachineDefinition.TOP_STATE.equals(machineState.name())) {
+                error("State name is reserved: " + machineState.name(), owner);
+            } else {
+                addState(machineState.name(), machineState.parent(), machineState.initial(), owner);
+            }
+        }
+
+        resolveHierarchy();
+        if (!valid) {
+            return false;// actions can't be checked against a broken hierarchy
+        }
+
+        for (Element element : owner.getEnclosedElements()) {
+            if (element.getKind() == ElementKind.METHOD) {
+                addActions((ExecutableElement) element);
+            }
+        }
+        transitions.forEach(this::precompute);
+
+        return valid;
+    }
+
+    TypeElement getOwner() {
+        return owner;
+    }
+
+    String getOwnerName() {
+        return owner.getQualifiedName().toString();
+    }
+
+    String getPackageName() {
+        return processingEnv.getElementUtils().getPackageOf(owner).getQualifiedName().toString();
+    }
+
+    String getDefinitionName() {
+        return owner.getSimpleName() + "Definition";
+    }
+
+    String getDispatcherName() {
+        return owner.getSimpleName() + "Dispatcher";
+    }
+
+    List<StateModel> getStates() {
+        return states;
+    }
+
+    List<String> getSignals() {
+        return signals;
+    }
+
+    List<TransitionModel> getTransitions() {
+        return transitions;
+    }
+
+    private void addState(String name, String parentName, String initialName, Element element) {
+        if (!SourceVersion.isIdentifier(name) || SourceVersion.isKeyword(name)) {
+            error("State name is not a Java identifier: " + name, element);
+        } else if (statesByName.containsKey(name)) {
+            error("Duplicate state: " + name, element);
+        } else {
+            StateModel state = new StateModel(name, parentName, initialName, element, states.size());
+            states.add(state);
+            statesByName.put(name, state);
+        }
+    }
+
+    private void resolveHierarchy() {
+        Set<String> constantNames = Sets.newHashSet();
+        for (StateModel state : states) {
+            if (!constantNames.add(state.getConstantName())) {
+                error("State name collides with an other one as a constant: " + state.name, state.element);
+            }
+            if (state.parentName != null) {
+                StateModel parent = statesByName.get(state.parentName);
+                if (parent == null) {
+                    error("Unknown parent state of " + state.name + ": " + state.parentName, state.element);
+                } else {
+                    state.parent = parent.index;
+                }
+            }
+        }
+
+        for (StateModel state : states) {
+            int depth = 0;
+            for (int parent = state.parent; parent >= 0 && depth <= states.size(); parent = states.get(parent).parent) {
+                depth++;
+            }
+            if (depth > states.size()) {
+                error("Cycle in the parents of state " + state.name, state.element);
+            }
+            state.depth = depth;
+        }
+
+        for (StateModel state : states) {
+            if (!state.initialName.isEmpty()) {
+                StateModel initial = statesByName.get(state.initialName);
+                if (initial == null) {
+                    error("Unknown initial state of " + state.name + ": " + state.initialName, state.element);
+                } else if (initial.parent != state.index) {
+                    error("Initial state of " + state.name + " is not its sub state: " + state.initialName,
+                            state.element);
+                } else {
+                    state.initial = initial.index;
+                }
+            }
+        }
+    }
+
+    private void addActions(ExecutableElement method) {
+        Entry entry = method.getAnnotation(Entry.class);
+        if (entry != null && checkMethod(method, false)) {
+            StateModel state = stateOf(entry.value(), method);
+            if (state != null) {
+                state.entryMethods.add(method.getSimpleName().toString());
+            }
+        }
+
+        Exit exit = method.getAnnotation(Exit.class);
+        if (exit != null && checkMethod(method, false)) {
+            StateModel state = stateOf(exit.value(), method);
+            if (state != null) {
+                state.exitMethods.add(method.getSimpleName().toString());
+            }
+        }
+
+        Transition[] transitionAnnotations = method.getAnnotationsByType(Transition.class);
+        if (transitionAnnotations.length > 0 && checkMethod(method, true)) {
+            for (Transition transition : transitionAnnotations) {
+                addTransition(transition, method);
+            }
+        }
+    }
+
+    private void addTransition(Transition transition, ExecutableElement method) {
+        StateModel source = stateOf(transition.source(), method);
+        StateModel target = transition.target().isEmpty() ? null : stateOf(transition.target(), method);
+        if (transition.signal().isEmpty()) {
+            error("Missing signal of the transition", method);
+            return;
+        }
+        if (source == null || (!transition.target().isEmpty() && target == null)) {
+            return;
+        }
+        if (target != null && target.index == 0) {
+            error("The top state can't be the target of a transition", method);
+            return;
+        }
+
+        int signal = signals.indexOf(transition.signal());
+        if (signal < 0) {
+            signal = signals.size();
+            signals.add(transition.signal());
+        }
+        for (TransitionModel other : transitions) {
+            if (other.source == source.index && other.signal == signal) {
+                error("Duplicate transition from " + source.name + " on " + transition.signal() + ", already handled by "
+                        + other.method + "()", method);
+                return;
+            }
+        }
+
+        transitions.add(new TransitionModel(transitions.size(), source.index, signal,
+                target != null ? target.index : -1, method.getSimpleName().toString(),
+                method.getParameters().size() == 1));
+    }
+
+    private boolean checkMethod(ExecutableElement method, boolean eventAllowed) {
+        if (method.getModifiers().contains(Modifier.PRIVATE) || method.getModifiers().contains(Modifier.STATIC)) {
+            error("Action method must be a non-private instance method", method);
+            return false;
+        }
+
+        TypeMirror eventType = processingEnv.getElementUtils()
+                .getTypeElement(StateMachineEvent.class.getCanonicalName()).asType();
+        int parameterCount = method.getParameters().size();
+        boolean validParameters = parameterCount == 0 || (eventAllowed && parameterCount == 1
+                && processingEnv.getTypeUtils().isSameType(method.getParameters().get(0).asType(), eventType));
+        if (!validParameters) {
+            error(eventAllowed ? "Transition method must have no parameters or a StateMachineEvent parameter"
+                    : "Entry and exit methods must have no parameters", method);
+            return false;
+        }
+        return true;
+    }
+
+    private StateModel stateOf(String name, Element element) {
+        StateModel state = statesByName.get(name);
+        if (state == null) {
+            error("Unknown state: " + name, element);
+        }
+        return state;
+    }
+
+    // External transition: the domain is the common ancestor of the source and the target, which contains both (except
+    // for the top state, which is never exited).
+    private void precompute(TransitionModel transition) {
+        if (transition.target < 0) {
+            return;
+        }
+
+        int source = transition.source;
+        int target = transition.target;
+        while (states.get(source).depth > states.get(target).depth) {
+            source = states.get(source).parent;
+        }
+        while (states.get(target).depth > states.get(source).depth) {
+            target = states.get(target).parent;
+        }
+        while (source != target) {
+            source = states.get(source).parent;
+            target = states.get(target).parent;
+        }
+        int domain = source;
+        if ((domain == transition.source || domain == transition.target) && domain != 0) {
+            domain = states.get(domain).parent;
+        }
+        transition.domain = domain;
+
+        int[] entryPath = new int[states.get(transition.target).depth - states.get(domain).depth];
+        int state = transition.target;
+        for (int i = entryPath.length - 1; i >= 0; i--) {
+            entryPath[i] = state;
+            state = states.get(state).parent;
+        }
+        transition.entryPath = entryPath;
+    }
+
+    private void error(String message, Element element) {
+        valid = false;
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
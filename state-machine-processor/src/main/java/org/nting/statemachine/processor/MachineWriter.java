@@ -0,0 +1,178 @@
+package org.nting.statemachine.processor;
+
+import java.util.List;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.nting.statemachine.processor.MachineModel.StateModel;
+import org.nting.statemachine.processor.MachineModel.TransitionModel;
+
+// Writes the source of the generated classes.
+class MachineWriter {
+
+    private final MachineModel machineModel;
+
+    MachineWriter(MachineModel machineModel) {
+        this.machineModel = machineModel;
+    }
+
+    String writeDefinition() {
+        List<StateModel> states = machineModel.getStates();
+        List<String> signals = machineModel.getSignals();
+        List<TransitionModel> transitions = machineModel.getTransitions();
+
+        StringBuilder sb = new StringBuilder();
+        appendHeader(sb);
+        sb.append("import org.nting.statemachine.IEventSignal;\n\n");
+        sb.append("public final class ").append(machineModel.getDefinitionName()).append(" {\n\n");
+
+        sb.append("    public static final class States {\n");
+        for (StateModel state : states) {
+            sb.append("        public static final int ").append(state.getConstantName()).append(" = ")
+                    .append(state.index).append(";\n");
+        }
+        sb.append("\n        private States() {\n        }\n    }\n\n");
+
+        sb.append("    public static final String[] STATE_NAMES = { ")
+                .append(join(states.size(), i -> quote(states.get(i).name))).append(" };\n");
+        sb.append("    public static final int[] PARENTS = { ")
+                .append(join(states.size(), i -> String.valueOf(states.get(i).parent))).append(" };\n");
+        sb.append("    // Initial sub state, -1 for simple states\n");
+        sb.append("    public static final int[] INITIAL_STATES = { ")
+                .append(join(states.size(), i -> String.valueOf(states.get(i).initial))).append(" };\n");
+        sb.append("    public static final String[] SIGNALS = { ")
+                .append(join(signals.size(), i -> quote(signals.get(i)))).append(" };\n\n");
+
+        sb.append("    // Transition index by state and signal, -1 if the state doesn't handle the signal\n");
+        sb.append("    public static final int[][] TRANSITIONS = {\n");
+        for (StateModel state : states) {
+            sb.append("            { ").append(join(signals.size(), signal -> String.valueOf(transitions.stream()
+                    .filter(transition -> transition.source == state.index && transition.signal == signal)
+                    .mapToInt(transition -> transition.index).findFirst().orElse(-1)))).append(" },\n");
+        }
+        sb.append("    };\n");
+        sb.append("    // -1 for internal transitions\n");
+        sb.append("    public static final int[] TRANSITION_TARGETS = { ")
+                .append(join(transitions.size(), i -> String.valueOf(transitions.get(i).target))).append(" };\n");
+        sb.append("    // States are exited up to (excluding) the domain\n");
+        sb.append("    public static final int[] TRANSITION_DOMAINS = { ")
+                .append(join(transitions.size(), i -> String.valueOf(transitions.get(i).domain))).append(" };\n");
+        sb.append("    // States entered, from the outermost one to the target\n");
+        sb.append("    public static final int[][] TRANSITION_ENTRY_PATHS = {\n");
+        for (TransitionModel transition : transitions) {
+            sb.append("            { ").append(join(transition.entryPath.length,
+                    i -> String.valueOf(transition.entryPath[i]))).append(" },\n");
+        }
+        sb.append("    };\n\n");
+
+        sb.append("    private ").append(machineModel.getDefinitionName()).append("() {\n    }\n\n");
+
+        sb.append("    // Returns -1 for the signals which are not handled by any state.\n");
+        sb.append("    public static int signalOf(IEventSignal eventSignal) {\n");
+        sb.append("        switch (eventSignal.toString()) {\n");
+        for (int i = 0; i < signals.size(); i++) {
+            sb.append("        case ").append(quote(signals.get(i))).append(":\n");
+            sb.append("            return ").append(i).append(";\n");
+        }
+        sb.append("        default:\n            return -1;\n        }\n    }\n}\n");
+        return sb.toString();
+    }
+
+    String writeDispatcher() {
+        String definition = machineModel.getDefinitionName();
+        String dispatcher = machineModel.getDispatcherName();
+
+        StringBuilder sb = new StringBuilder();
+        appendHeader(sb);
+        sb.append("import org.nting.statemachine.StateMachineEvent;\n\n");
+        sb.append("// Calls the actions of the owner directly, based on the precomputed tables of ").append(definition)
+                .append(".\n");
+        sb.append("public final class ").append(dispatcher).append(" {\n\n");
+        sb.append("    private final ").append(machineModel.getOwnerName()).append(" owner;\n");
+        sb.append("    private int currentState = ").append(definition).append(".States.TOP_STATE;\n\n");
+
+        sb.append("    public ").append(dispatcher).append("(").append(machineModel.getOwnerName())
+                .append(" owner) {\n        this.owner = owner;\n    }\n\n");
+
+        sb.append("    public void initialize() {\n");
+        sb.append("        currentState = ").append(definition).append(".States.TOP_STATE;\n");
+        sb.append("        enterInitialStates();\n    }\n\n");
+
+        sb.append("    public int getState() {\n        return currentState;\n    }\n\n");
+        sb.append("    public String getStateName() {\n        return ").append(definition)
+                .append(".STATE_NAMES[currentState];\n    }\n\n");
+
+        sb.append("    // Returns false if no state handled the event.\n");
+        sb.append("    public boolean dispatch(StateMachineEvent event) {\n");
+        sb.append("        int signal = ").append(definition).append(".signalOf(event.getEventSignal());\n");
+        sb.append("        if (signal < 0) {\n            return false;\n        }\n\n");
+        sb.append("        for (int state = currentState; state >= 0; state = ").append(definition)
+                .append(".PARENTS[state]) {\n");
+        sb.append("            int transition = ").append(definition).append(".TRANSITIONS[state][signal];\n");
+        sb.append("            if (transition >= 0) {\n");
+        sb.append("                fire(transition, event);\n                return true;\n            }\n");
+        sb.append("        }\n        return false;\n    }\n\n");
+
+        sb.append("    private void fire(int transition, StateMachineEvent event) {\n");
+        sb.append("        int target = ").append(definition).append(".TRANSITION_TARGETS[transition];\n");
+        sb.append("        if (target < 0) {\n            action(transition, event);\n            return;\n        }\n\n");
+        sb.append("        int domain = ").append(definition).append(".TRANSITION_DOMAINS[transition];\n");
+        sb.append("        while (currentState != domain) {\n            exit(currentState);\n");
+        sb.append("            currentState = ").append(definition).append(".PARENTS[currentState];\n        }\n");
+        sb.append("        action(transition, event);\n");
+        sb.append("        for (int state : ").append(definition).append(".TRANSITION_ENTRY_PATHS[transition]) {\n");
+        sb.append("            currentState = state;\n            entry(state);\n        }\n");
+        sb.append("        enterInitialStates();\n    }\n\n");
+
+        sb.append("    private void enterInitialStates() {\n");
+        sb.append("        while (").append(definition).append(".INITIAL_STATES[currentState] >= 0) {\n");
+        sb.append("            currentState = ").append(definition).append(".INITIAL_STATES[currentState];\n");
+        sb.append("            entry(currentState);\n        }\n    }\n\n");
+
+        sb.append("    private void action(int transition, StateMachineEvent event) {\n");
+        sb.append("        switch (transition) {\n");
+        for (TransitionModel transition : machineModel.getTransitions()) {
+            sb.append("        case ").append(transition.index).append(":\n");
+            sb.append("            owner.").append(transition.method).append(transition.withEvent ? "(event)" : "()")
+                    .append(";\n            break;\n");
+        }
+        sb.append("        default:\n            break;\n        }\n    }\n\n");
+
+        appendStateActions(sb, "entry", true);
+        sb.append("\n");
+        appendStateActions(sb, "exit", false);
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private void appendStateActions(StringBuilder sb, String name, boolean entry) {
+        sb.append("    private void ").append(name).append("(int state) {\n");
+        sb.append("        switch (state) {\n");
+        for (StateModel state : machineModel.getStates()) {
+            List<String> methods = entry ? state.entryMethods : state.exitMethods;
+            if (!methods.isEmpty()) {
+                sb.append("        case ").append(state.index).append(":\n");
+                methods.forEach(method -> sb.append("            owner.").append(method).append("();\n"));
+                sb.append("            break;\n");
+            }
+        }
+        sb.append("        default:\n            break;\n        }\n    }\n");
+    }
+
+    private void appendHeader(StringBuilder sb) {
+        sb.append("// Generated by ").append(MachineDefinitionProcessor.class.getName()).append(" from ")
+                .append(machineModel.getOwnerName()).append(", do not edit.\n");
+        if (!machineModel.getPackageName().isEmpty()) {
+            sb.append("package ").append(machineModel.getPackageName()).append(";\n\n");
+        }
+    }
+
+    private static String join(int size, IntFunction<String> element) {
+        return IntStream.range(0, size).mapToObj(element).collect(Collectors.joining(", "));
+    }
+
+    private static String quote(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
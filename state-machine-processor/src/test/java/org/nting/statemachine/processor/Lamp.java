@@ -0,0 +1,97 @@
+package org.nting.statemachine.processor;
+
+import java.util.List;
+
+import org.nting.statemachine.IEventSignal;
+import org.nting.statemachine.StateMachineEvent;
+import org.nting.statemachine.annotation.Entry;
+import org.nting.statemachine.annotation.Exit;
+import org.nting.statemachine.annotation.MachineDefinition;
+import org.nting.statemachine.annotation.MachineState;
+import org.nting.statemachine.annotation.Transition;
+
+import com.google.common.collect.Lists;
+
+// Compiled with MachineDefinitionProcessor, see LampDispatcher and LampDefinition.
+@MachineDefinition(initial = "Off")
+@MachineState(name = "Off")
+@MachineState(name = "On", initial = "Dim")
+@MachineState(name = "Dim", parent = "On")
+@MachineState(name = "Bright", parent = "On")
+public class Lamp {
+
+    public enum LampSignal implements IEventSignal {
+        POWER, BRIGHTER, DIMMER, TICK, UNKNOWN
+    }
+
+    final List<String> actions = Lists.newArrayList();
+    int ticks;
+
+    @Entry("Off")
+    void entryOff() {
+        actions.add("Off-ENTRY");
+    }
+
+    @Exit("Off")
+    void exitOff() {
+        actions.add("Off-EXIT");
+    }
+
+    @Entry("On")
+    void entryOn() {
+        actions.add("On-ENTRY");
+    }
+
+    @Exit("On")
+    void exitOn() {
+        actions.add("On-EXIT");
+    }
+
+    @Entry("Dim")
+    void entryDim() {
+        actions.add("Dim-ENTRY");
+    }
+
+    @Exit("Dim")
+    void exitDim() {
+        actions.add("Dim-EXIT");
+    }
+
+    @Entry("Bright")
+    void entryBright() {
+        actions.add("Bright-ENTRY");
+    }
+
+    @Exit("Bright")
+    void exitBright() {
+        actions.add("Bright-EXIT");
+    }
+
+    @Transition(source = "Off", signal = "POWER", target = "On")
+    @Transition(source = "On", signal = "POWER", target = "Off")
+    void power() {
+        actions.add("power");
+    }
+
+    @Transition(source = "Dim", signal = "BRIGHTER", target = "Bright")
+    void brighter() {
+        actions.add("brighter");
+    }
+
+    @Transition(source = "Bright", signal = "DIMMER", target = "Dim")
+    void dimmer() {
+        actions.add("dimmer");
+    }
+
+    // Self transition of the composite state, re-enters its initial sub state.
+    @Transition(source = "Bright", signal = "POWER", target = "On")
+    void restart() {
+        actions.add("restart");
+    }
+
+    @Transition(source = "On", signal = "TICK")
+    void tick(StateMachineEvent event) {
+        ticks++;
+        actions.add("tick-" + event.getProperty("count"));
+    }
+}
@@ -0,0 +1,172 @@
+package org.nting.statemachine.processor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.nting.statemachine.processor.Lamp.LampSignal.BRIGHTER;
+import static org.nting.statemachine.processor.Lamp.LampSignal.DIMMER;
+import static org.nting.statemachine.processor.Lamp.LampSignal.POWER;
+import static org.nting.statemachine.processor.Lamp.LampSignal.TICK;
+import static org.nting.statemachine.processor.Lamp.LampSignal.UNKNOWN;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.nting.statemachine.StateMachineEvent;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class MachineDefinitionProcessorTest {
+
+    private Lamp lamp;
+    private LampDispatcher dispatcher;
+
+    @Before
+    public void setUp() {
+        lamp = new Lamp();
+        dispatcher = new LampDispatcher(lamp);
+        dispatcher.initialize();
+    }
+
+    @Test
+    public void testDefinition() {
+        assertArrayEquals(new String[] { "TopState", "Off", "On", "Dim", "Bright" }, LampDefinition.STATE_NAMES);
+        assertArrayEquals(new int[] { -1, 0, 0, 2, 2 }, LampDefinition.PARENTS);
+        assertEquals(LampDefinition.States.DIM, LampDefinition.INITIAL_STATES[LampDefinition.States.ON]);
+        assertEquals(-1, LampDefinition.signalOf(UNKNOWN));
+    }
+
+    @Test
+    public void testInitialize() {
+        assertEquals(LampDefinition.States.OFF, dispatcher.getState());
+        assertEquals(ImmutableList.of("Off-ENTRY"), lamp.actions);
+    }
+
+    @Test
+    public void testExternalTransitions() {
+        lamp.actions.clear();
+        assertTrue(dispatcher.dispatch(new StateMachineEvent(POWER)));
+        assertEquals("Dim", dispatcher.getStateName());
+        assertEquals(ImmutableList.of("Off-EXIT", "power", "On-ENTRY", "Dim-ENTRY"), lamp.actions);
+
+        lamp.actions.clear();
+        assertTrue(dispatcher.dispatch(new StateMachineEvent(BRIGHTER)));
+        assertEquals("Bright", dispatcher.getStateName());
+        assertEquals(ImmutableList.of("Dim-EXIT", "brighter", "Bright-ENTRY"), lamp.actions);
+
+        lamp.actions.clear();
+        assertTrue(dispatcher.dispatch(new StateMachineEvent(POWER)));
+        assertEquals("Dim", dispatcher.getStateName());
+        assertEquals(ImmutableList.of("Bright-EXIT", "On-EXIT", "restart", "On-ENTRY", "Dim-ENTRY"), lamp.actions);
+
+        lamp.actions.clear();
+        assertTrue(dispatcher.dispatch(new StateMachineEvent(POWER)));
+        assertEquals("Off", dispatcher.getStateName());
+        assertEquals(ImmutableList.of("Dim-EXIT", "On-EXIT", "power", "Off-ENTRY"), lamp.actions);
+    }
+
+    @Test
+    public void testInternalTransition() {
+        dispatcher.dispatch(new StateMachineEvent(POWER));
+        dispatcher.dispatch(new StateMachineEvent(BRIGHTER));
+
+        lamp.actions.clear();
+        assertTrue(dispatcher.dispatch(new StateMachineEvent(TICK, ImmutableMap.of("count", 7))));
+        assertEquals("Bright", dispatcher.getStateName());
+        assertEquals(ImmutableList.of("tick-7"), lamp.actions);
+        assertEquals(1, lamp.ticks);
+    }
+
+    @Test
+    public void testUnhandledEvents() {
+        lamp.actions.clear();
+        assertFalse(dispatcher.dispatch(new StateMachineEvent(DIMMER)));
+        assertFalse(dispatcher.dispatch(new StateMachineEvent(TICK)));
+        assertFalse(dispatcher.dispatch(new StateMachineEvent(UNKNOWN)));
+        assertEquals("Off", dispatcher.getStateName());
+        assertTrue(lamp.actions.isEmpty());
+    }
+
+    @Test
+    public void testErrors() throws IOException {
+        String source = "package test;\n" //
+                + "import org.nting.statemachine.annotation.*;\n" //
+                + "@MachineDefinition(initial = \"A\")\n" //
+                + "@MachineState(name = \"A\", initial = \"C\")\n" //
+                + "@MachineState(name = \"B\", parent = \"Missing\")\n" //
+                + "@MachineState(name = \"C\")\n" //
+                + "public class Broken {\n" //
+                + "    @Entry(\"D\") void entryD() {}\n" //
+                + "    @Exit(\"A\") private void exitA() {}\n" //
+                + "    @Transition(source = \"A\", signal = \"GO\", target = \"C\") void go(int i) {}\n" //
+                + "}\n";
+
+        List<String> errors = compile("test.Broken", source);
+
+        assertEquals(2, errors.size());
+        assertTrue(errors.contains("Unknown parent state of B: Missing"));
+        assertTrue(errors.contains("Initial state of A is not its sub state: C"));
+    }
+
+    @Test
+    public void testActionErrors() throws IOException {
+        String source = "package test;\n" //
+                + "import org.nting.statemachine.annotation.*;\n" //
+                + "@MachineDefinition(initial = \"A\")\n" //
+                + "@MachineState(name = \"A\")\n" //
+                + "public class Broken {\n" //
+                + "    @Entry(\"D\") void entryD() {}\n" //
+                + "    @Exit(\"A\") private void exitA() {}\n" //
+                + "    @Transition(source = \"A\", signal = \"GO\", target = \"A\") void go(int i) {}\n" //
+                + "    @Transition(source = \"A\", signal = \"STOP\") void stop() {}\n" //
+                + "    @Transition(source = \"A\", signal = \"STOP\") void halt() {}\n" //
+                + "}\n";
+
+        List<String> errors = compile("test.Broken", source);
+
+        assertEquals(ImmutableList.of("Unknown state: D", "Action method must be a non-private instance method",
+                "Transition method must have no parameters or a StateMachineEvent parameter",
+                "Duplicate transition from A on STOP, already handled by stop()"), errors);
+    }
+
+    private static List<String> compile(String className, String source) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        Path outputDirectory = Files.createTempDirectory("processor-test");
+        try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null)) {
+            JavaFileObject sourceFile = new SimpleJavaFileObject(
+                    URI.create("string:///" + className.replace('.', '/') + ".java"), JavaFileObject.Kind.SOURCE) {
+                @Override
+                public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                    return source;
+                }
+            };
+            JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics,
+                    ImmutableList.of("-classpath", System.getProperty("java.class.path"), "-d",
+                            outputDirectory.toString(), "-proc:only"),
+                    null, Collections.singletonList(sourceFile));
+            task.setProcessors(Collections.singletonList(new MachineDefinitionProcessor()));
+            task.call();
+        }
+
+        return diagnostics.getDiagnostics().stream().filter(d -> d.getKind() == Diagnostic.Kind.ERROR)
+                .map(d -> d.getMessage(null)).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,123 @@
+package org.nting.statemachine;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+// Choice (or junction) pseudo state. Instead of a handler evaluating INIT with the properties of the last event, it
+// has an ordered list of guards over typed event fields, which are evaluated by the state machine against the
+// triggering event directly. The first matching guard selects the target state, otherwise the default target.
+//
+// Guards are compiled into a decision table: the predicates are tested in order, and each distinct field is read when
+// the first guard using it is tested, at most once per evaluation, so the fields of the guards after the matching one
+// aren't read at all. Configure the guards before the state machine uses the state.
+//
+// The target is selected when the transition to the choice state starts, so if no guard matches (and there is no
+// default target) the IllegalStateException is thrown before any state is exited.
+public class ChoiceState extends State {
+
+    private final List<EventField.Guard<?>> guards = Lists.newArrayList();
+    private final List<State> guardTargets = Lists.newArrayList();
+    private State otherwiseTarget;
+
+    // Decision table
+    private EventField<?>[] fields = new EventField<?>[0];// in the order of their first guard
+    private int[] fieldIndexes = new int[0];
+    private Predicate<Object>[] predicates = newPredicates(0);
+    private State[] targets = new State[0];
+
+    private LongAdder[] guardHitCounts = new LongAdder[0];
+    private final LongAdder otherwiseHitCount = new LongAdder();
+
+    public ChoiceState(String stateName, State parentState) {
+        super(stateMachineEvent -> parentState, stateName, true);
+    }
+
+    public <T> ChoiceState when(EventField.Guard<T> guard, State targetState) {
+        guards.add(Preconditions.checkNotNull(guard));
+        guardTargets.add(Preconditions.checkNotNull(targetState));
+        compile();
+        return this;
+    }
+
+    public ChoiceState otherwise(State targetState) {
+        otherwiseTarget = Preconditions.checkNotNull(targetState);
+        return this;
+    }
+
+    // Returns the hit count of the guards, in the order of their declaration.
+    public long[] getGuardHitCounts() {
+        long[] hitCounts = new long[guardHitCounts.length];
+        for (int i = 0; i < hitCounts.length; i++) {
+            hitCounts[i] = guardHitCounts[i].sum();
+        }
+        return hitCounts;
+    }
+
+    public long getOtherwiseHitCount() {
+        return otherwiseHitCount.sum();
+    }
+
+    // The state can be shared by state machines running in parallel, so the field values are kept in a local array,
+    // which doesn't escape (and is small, only the distinct fields are read). As the fields are numbered in the order
+    // of their first guard, the field of a guard is either read already or the next one to read.
+    State select(StateMachineEvent stateMachineEvent) {
+        Object[] fieldValues = new Object[fields.length];
+        int readCount = 0;
+        for (int i = 0; i < predicates.length; i++) {
+            int fieldIndex = fieldIndexes[i];
+            if (fieldIndex == readCount) {
+                fieldValues[readCount++] = fields[fieldIndex].valueOf(stateMachineEvent);
+            }
+            if (predicates[i].test(fieldValues[fieldIndex])) {
+                guardHitCounts[i].increment();
+                return targets[i];
+            }
+        }
+
+        Preconditions.checkState(otherwiseTarget != null, "No guard of %s matched %s", stateName, stateMachineEvent);
+        otherwiseHitCount.increment();
+        return otherwiseTarget;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void compile() {
+        List<EventField<?>> distinctFields = Lists.newArrayList();
+        int size = guards.size();
+        int[] newFieldIndexes = new int[size];
+        Predicate<Object>[] newPredicates = newPredicates(size);
+        LongAdder[] newGuardHitCounts = new LongAdder[size];
+        for (int i = 0; i < size; i++) {
+            EventField.Guard<?> guard = guards.get(i);
+            int fieldIndex = distinctFields.indexOf(guard.eventField);
+            if (fieldIndex < 0) {
+                fieldIndex = distinctFields.size();
+                distinctFields.add(guard.eventField);
+            }
+            newFieldIndexes[i] = fieldIndex;
+            newPredicates[i] = (Predicate<Object>) guard.predicate;
+            newGuardHitCounts[i] = i < guardHitCounts.length ? guardHitCounts[i] : new LongAdder();
+        }
+
+        fields = distinctFields.toArray(new EventField<?>[0]);
+        fieldIndexes = newFieldIndexes;
+        predicates = newPredicates;
+        targets = guardTargets.toArray(new State[0]);
+        guardHitCounts = newGuardHitCounts;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Predicate<Object>[] newPredicates(int size) {
+        return new Predicate[size];
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this).add("stateName", stateName).add("guards", guards.size())
+                .add("hasOtherwise", otherwiseTarget != null).toString();
+    }
+}
@@ -0,0 +1,271 @@
+package org.nting.statemachine;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
+
+// File of records addressed by their key. Neither the records nor their index are held on the heap: the records are
+// stored in blocks of power of two sizes, and a block freed by replacing or deleting its record is reused by the next
+// record of its size (the free blocks of a size are linked through the file). The index is an open addressing hash
+// table in a memory mapped file next to the store (<file>.index), which is rebuilt when it gets crowded.
+//
+// The store is a scratch space: both files are truncated when it is opened. Methods are synchronized.
+public class ColdStore implements Closeable {
+
+    private static final long MAGIC = 0x636f6c6453746f72L;
+    private static final int HEADER_SIZE = Long.BYTES;
+    private static final int MIN_BLOCK_SHIFT = 5;// 32 bytes
+    private static final int MAX_BLOCK_SHIFT = 30;
+    // Block: size class (int), key length (int, -1 when free), data length (int), key, data. A free block holds the
+    // position of the next free block of its size class (long) instead of the lengths.
+    private static final int BLOCK_HEADER_SIZE = 3 * Integer.BYTES;
+    private static final int FREE = -1;
+
+    // Index slot: hash of the key (long), position of its block (long, 0 when empty, -1 when deleted).
+    private static final int INDEX_SLOT_SIZE = 2 * Long.BYTES;
+    private static final int MIN_INDEX_CAPACITY = 1024;
+    private static final long EMPTY = 0;
+    private static final long DELETED = -1;
+
+    private final FileChannel fileChannel;
+    private final Path indexFile;
+    private FileChannel indexChannel;
+    private MappedByteBuffer index;
+    private int indexCapacity;// power of two
+    private int recordCount;
+    private int deletedCount;
+
+    private long size;
+    private final long[] freeBlocks = new long[MAX_BLOCK_SHIFT - MIN_BLOCK_SHIFT + 1];// heads of the free lists
+    private long freeBytes;
+
+    public ColdStore(Path file) throws IOException {
+        fileChannel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putLong(MAGIC).flip();
+        writeFully(header, 0);
+        size = HEADER_SIZE;
+
+        indexFile = file.resolveSibling(file.getFileName() + ".index");
+        indexChannel = openIndex(indexFile);
+        indexCapacity = MIN_INDEX_CAPACITY;
+        index = mapIndex(indexChannel, indexCapacity);
+    }
+
+    // Stores the record of the key, replacing its previous record.
+    public synchronized void put(byte[] key, byte[] data) throws IOException {
+        long hash = hash(key);
+        int slot = findSlot(key, hash);
+        if (slot >= 0) {
+            free(positionAt(slot));
+            index.putLong(slot * INDEX_SLOT_SIZE + Long.BYTES, writeBlock(key, data));
+            return;
+        }
+
+        if ((recordCount + deletedCount + 1) * 2L > indexCapacity) {
+            rebuildIndex();
+        }
+        insert(index, indexCapacity, hash, writeBlock(key, data));
+        recordCount++;
+    }
+
+    // Returns null if there is no record of the key.
+    public synchronized byte[] get(byte[] key) throws IOException {
+        int slot = findSlot(key, hash(key));
+        if (slot < 0) {
+            return null;
+        }
+
+        long position = positionAt(slot);
+        ByteBuffer blockHeader = readFully(BLOCK_HEADER_SIZE, position);
+        int keyLength = blockHeader.getInt(Integer.BYTES);
+        int dataLength = blockHeader.getInt(2 * Integer.BYTES);
+        return readFully(dataLength, position + BLOCK_HEADER_SIZE + keyLength).array();
+    }
+
+    // Returns false if there was no record of the key.
+    public synchronized boolean delete(byte[] key) throws IOException {
+        int slot = findSlot(key, hash(key));
+        if (slot < 0) {
+            return false;
+        }
+
+        free(positionAt(slot));
+        index.putLong(slot * INDEX_SLOT_SIZE + Long.BYTES, DELETED);
+        recordCount--;
+        deletedCount++;
+        return true;
+    }
+
+    public synchronized int getRecordCount() {
+        return recordCount;
+    }
+
+    // Size of the file, including the free blocks.
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized long getFreeBytes() {
+        return freeBytes;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            fileChannel.close();
+        } finally {
+            indexChannel.close();
+        }
+    }
+
+    private long writeBlock(byte[] key, byte[] data) throws IOException {
+        int blockShift = blockShiftOf(BLOCK_HEADER_SIZE + key.length + data.length);
+        long position = allocate(blockShift);
+
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_HEADER_SIZE + key.length + data.length);
+        block.putInt(blockShift).putInt(key.length).putInt(data.length).put(key).put(data).flip();
+        writeFully(block, position);
+        return position;
+    }
+
+    private long allocate(int blockShift) throws IOException {
+        int sizeClass = blockShift - MIN_BLOCK_SHIFT;
+        long position = freeBlocks[sizeClass];
+        if (position == 0) {
+            position = size;
+            size += 1L << blockShift;
+            return position;
+        }
+
+        freeBlocks[sizeClass] = readFully(BLOCK_HEADER_SIZE + Long.BYTES, position).getLong(BLOCK_HEADER_SIZE);
+        freeBytes -= 1L << blockShift;
+        return position;
+    }
+
+    private void free(long position) throws IOException {
+        int blockShift = readFully(Integer.BYTES, position).getInt(0);
+        int sizeClass = blockShift - MIN_BLOCK_SHIFT;
+
+        ByteBuffer freeBlock = ByteBuffer.allocate(BLOCK_HEADER_SIZE + Long.BYTES);
+        freeBlock.putInt(blockShift).putInt(FREE).putInt(0).putLong(freeBlocks[sizeClass]).flip();
+        writeFully(freeBlock, position);
+        freeBlocks[sizeClass] = position;
+        freeBytes += 1L << blockShift;
+    }
+
+    private static int blockShiftOf(int length) {
+        int blockShift = Math.max(MIN_BLOCK_SHIFT, 32 - Integer.numberOfLeadingZeros(length - 1));
+        Preconditions.checkArgument(blockShift <= MAX_BLOCK_SHIFT, "Record is too large: %s bytes", length);
+        return blockShift;
+    }
+
+    // Returns the index slot of the key, or -1.
+    private int findSlot(byte[] key, long hash) throws IOException {
+        int mask = indexCapacity - 1;
+        for (int slot = (int) hash & mask;; slot = (slot + 1) & mask) {
+            long position = positionAt(slot);
+            if (position == EMPTY) {
+                return -1;
+            }
+            if (position != DELETED && index.getLong(slot * INDEX_SLOT_SIZE) == hash && keyEquals(position, key)) {
+                return slot;
+            }
+        }
+    }
+
+    private boolean keyEquals(long position, byte[] key) throws IOException {
+        int keyLength = readFully(BLOCK_HEADER_SIZE, position).getInt(Integer.BYTES);
+        return keyLength == key.length
+                && Arrays.equals(readFully(keyLength, position + BLOCK_HEADER_SIZE).array(), key);
+    }
+
+    private long positionAt(int slot) {
+        return index.getLong(slot * INDEX_SLOT_SIZE + Long.BYTES);
+    }
+
+    private static void insert(MappedByteBuffer index, int capacity, long hash, long position) {
+        int mask = capacity - 1;
+        int slot = (int) hash & mask;
+        while (true) {
+            long current = index.getLong(slot * INDEX_SLOT_SIZE + Long.BYTES);
+            if (current == EMPTY || current == DELETED) {
+                break;
+            }
+            slot = (slot + 1) & mask;
+        }
+        index.putLong(slot * INDEX_SLOT_SIZE, hash);
+        index.putLong(slot * INDEX_SLOT_SIZE + Long.BYTES, position);
+    }
+
+    // Rehashes the live entries into a new index file, sized for the record count, and replaces the current one.
+    private void rebuildIndex() throws IOException {
+        int newCapacity = MIN_INDEX_CAPACITY;
+        while (newCapacity < (recordCount + 1) * 4L) {
+            newCapacity <<= 1;
+        }
+        Preconditions.checkState(newCapacity <= Integer.MAX_VALUE / INDEX_SLOT_SIZE, "Too many records: %s",
+                recordCount);
+
+        Path newIndexFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        FileChannel newIndexChannel = openIndex(newIndexFile);
+        MappedByteBuffer newIndex = mapIndex(newIndexChannel, newCapacity);
+        for (int slot = 0; slot < indexCapacity; slot++) {
+            long position = positionAt(slot);
+            if (position != EMPTY && position != DELETED) {
+                insert(newIndex, newCapacity, index.getLong(slot * INDEX_SLOT_SIZE), position);
+            }
+        }
+
+        indexChannel.close();
+        Files.move(newIndexFile, indexFile, StandardCopyOption.REPLACE_EXISTING);
+        indexChannel = newIndexChannel;
+        index = newIndex;
+        indexCapacity = newCapacity;
+        deletedCount = 0;
+    }
+
+    private static FileChannel openIndex(Path indexFile) throws IOException {
+        return FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private static MappedByteBuffer mapIndex(FileChannel indexChannel, int capacity) throws IOException {
+        return indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, (long) capacity * INDEX_SLOT_SIZE);
+    }
+
+    private static long hash(byte[] key) {
+        return Hashing.murmur3_128().hashBytes(key).asLong();
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += fileChannel.write(buffer, position);
+        }
+    }
+
+    private ByteBuffer readFully(int length, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            int count = fileChannel.read(buffer, position);
+            if (count < 0) {
+                throw new EOFException("Unexpected end of the cold store at " + position);
+            }
+            position += count;
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
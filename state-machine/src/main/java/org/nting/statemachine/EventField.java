@@ -0,0 +1,70 @@
+package org.nting.statemachine;
+
+import java.util.Objects;
+import java.util.function.Predicate;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+
+// Typed property of a StateMachineEvent.
+public class EventField<T> {
+    public final String key;
+    public final Class<T> type;
+    public final T defaultValue;
+
+    private EventField(String key, Class<T> type, T defaultValue) {
+        this.key = Preconditions.checkNotNull(key);
+        this.type = Preconditions.checkNotNull(type);
+        this.defaultValue = defaultValue;
+    }
+
+    public static <T> EventField<T> of(String key, Class<T> type) {
+        return new EventField<>(key, type, null);
+    }
+
+    public static <T> EventField<T> of(String key, Class<T> type, T defaultValue) {
+        return new EventField<>(key, type, defaultValue);
+    }
+
+    public T valueOf(StateMachineEvent stateMachineEvent) {
+        Object value = stateMachineEvent.getProperty(key);
+        return value != null ? type.cast(value) : defaultValue;
+    }
+
+    public Guard<T> is(Predicate<? super T> predicate) {
+        return new Guard<>(this, predicate);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof EventField)) {
+            return false;
+        }
+        EventField<?> that = (EventField<?>) o;
+        return key.equals(that.key) && type.equals(that.type) && Objects.equals(defaultValue, that.defaultValue);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(key, type, defaultValue);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this).add("key", key).add("type", type.getSimpleName())
+                .add("defaultValue", defaultValue).toString();
+    }
+
+    public static class Guard<T> {
+        public final EventField<T> eventField;
+        public final Predicate<? super T> predicate;
+
+        private Guard(EventField<T> eventField, Predicate<? super T> predicate) {
+            this.eventField = eventField;
+            this.predicate = Preconditions.checkNotNull(predicate);
+        }
+    }
+}
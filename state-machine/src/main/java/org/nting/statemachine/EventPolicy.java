@@ -0,0 +1,57 @@
+package org.nting.statemachine;
+
+import java.util.function.Function;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+
+public class EventPolicy {
+
+    public enum Type {
+        // Keep every event in arrival order.
+        FIFO,
+        // Keep only the latest pending event per conflation key, in the position of the first one.
+        CONFLATE,
+        // Keep at most 'capacity' pending events, the oldest ones are dropped.
+        DROP_OLDEST
+    }
+
+    public enum Priority {
+        HIGH, NORMAL
+    }
+
+    public static final EventPolicy DEFAULT = fifo(Priority.NORMAL);
+
+    public final Type type;
+    public final Priority priority;
+    public final Function<StateMachineEvent, Object> conflationKey;
+    public final int capacity;
+
+    private EventPolicy(Type type, Priority priority, Function<StateMachineEvent, Object> conflationKey,
+            int capacity) {
+        this.type = Preconditions.checkNotNull(type);
+        this.priority = Preconditions.checkNotNull(priority);
+        this.conflationKey = conflationKey;
+        this.capacity = capacity;
+    }
+
+    public static EventPolicy fifo(Priority priority) {
+        return new EventPolicy(Type.FIFO, priority, null, Integer.MAX_VALUE);
+    }
+
+    public static EventPolicy conflate(Priority priority, Function<StateMachineEvent, Object> conflationKey) {
+        return new EventPolicy(Type.CONFLATE, priority, Preconditions.checkNotNull(conflationKey),
+                Integer.MAX_VALUE);
+    }
+
+    public static EventPolicy dropOldest(Priority priority, int capacity) {
+        Preconditions.checkArgument(capacity > 0);
+        return new EventPolicy(Type.DROP_OLDEST, priority, null, capacity);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this).add("type", type).add("priority", priority)
+                .add("capacity", capacity).toString();
+    }
+}
@@ -0,0 +1,174 @@
+package org.nting.statemachine;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+// Inbox in front of StateMachine.dispatch(). Events can be offered from any thread, but dispatchNext() and
+// dispatchAll() must be called from the thread which owns the state machine.
+public class EventQueue {
+
+    private final StateMachine stateMachine;
+    private final Map<IEventSignal, SignalQueue> signalQueues = Maps.newHashMap();
+    private final Deque<PendingEvent>[] lanes;
+    private final int[] droppedInLanes;// cancelled entries still held by the lanes
+    private int size;
+
+    @SuppressWarnings("unchecked")
+    public EventQueue(StateMachine stateMachine) {
+        this.stateMachine = stateMachine;
+        lanes = new Deque[EventPolicy.Priority.values().length];
+        droppedInLanes = new int[lanes.length];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ArrayDeque<>();
+        }
+    }
+
+    public synchronized void setPolicy(IEventSignal eventSignal, EventPolicy eventPolicy) {
+        SignalQueue signalQueue = signalQueues.get(eventSignal);
+        Preconditions.checkState(signalQueue == null || signalQueue.pendingCount == 0,
+                "Events of %s are pending", eventSignal);
+
+        signalQueues.put(eventSignal, new SignalQueue(eventPolicy));
+    }
+
+    public synchronized void offer(StateMachineEvent stateMachineEvent) {
+        SignalQueue signalQueue = signalQueueOf(stateMachineEvent.getEventSignal());
+        EventPolicy eventPolicy = signalQueue.eventPolicy;
+
+        Object conflationKey = null;
+        if (eventPolicy.type == EventPolicy.Type.CONFLATE) {
+            conflationKey = eventPolicy.conflationKey.apply(stateMachineEvent);
+            PendingEvent pendingEvent = signalQueue.pendingByKey.get(conflationKey);
+            if (pendingEvent != null) {// the newer event replaces the stale one in its place
+                pendingEvent.event = stateMachineEvent;
+                signalQueue.conflatedCount++;
+                return;
+            }
+        } else if (eventPolicy.type == EventPolicy.Type.DROP_OLDEST
+                && signalQueue.pendingCount >= eventPolicy.capacity) {
+            // Cancelled in place, the lane skips it when polling.
+            signalQueue.pending.pollFirst().event = null;
+            signalQueue.pendingCount--;
+            signalQueue.droppedCount++;
+            size--;
+            compactIfNeeded(eventPolicy.priority.ordinal());
+        }
+
+        PendingEvent pendingEvent = new PendingEvent(stateMachineEvent, signalQueue, conflationKey);
+        lanes[eventPolicy.priority.ordinal()].addLast(pendingEvent);
+        if (eventPolicy.type == EventPolicy.Type.CONFLATE) {
+            signalQueue.pendingByKey.put(conflationKey, pendingEvent);
+        } else if (eventPolicy.type == EventPolicy.Type.DROP_OLDEST) {
+            signalQueue.pending.addLast(pendingEvent);
+        }
+        signalQueue.pendingCount++;
+        size++;
+    }
+
+    public boolean dispatchNext() {
+        StateMachineEvent stateMachineEvent = poll();
+        if (stateMachineEvent == null) {
+            return false;
+        }
+
+        // NOTE: The lock is not held here, so handlers are free to offer new events.
+        stateMachine.dispatch(stateMachineEvent);
+        return true;
+    }
+
+    public int dispatchAll() {
+        int count = 0;
+        while (dispatchNext()) {
+            count++;
+        }
+        return count;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized long getDroppedCount(IEventSignal eventSignal) {
+        SignalQueue signalQueue = signalQueues.get(eventSignal);
+        return signalQueue != null ? signalQueue.droppedCount : 0;
+    }
+
+    public synchronized long getConflatedCount(IEventSignal eventSignal) {
+        SignalQueue signalQueue = signalQueues.get(eventSignal);
+        return signalQueue != null ? signalQueue.conflatedCount : 0;
+    }
+
+    // Number of entries held by the lane, including the cancelled ones.
+    synchronized int getLaneLength(EventPolicy.Priority priority) {
+        return lanes[priority.ordinal()].size();
+    }
+
+    // Removes the cancelled entries once they outnumber the live ones, so a burst of dropped events neither grows
+    // the lane nor has to be skipped by poll(). The cost is amortized over the drops.
+    private void compactIfNeeded(int laneIndex) {
+        droppedInLanes[laneIndex]++;
+        Deque<PendingEvent> lane = lanes[laneIndex];
+        if (droppedInLanes[laneIndex] > lane.size() - droppedInLanes[laneIndex]) {
+            lane.removeIf(pendingEvent -> pendingEvent.event == null);
+            droppedInLanes[laneIndex] = 0;
+        }
+    }
+
+    private synchronized StateMachineEvent poll() {
+        for (int i = 0; i < lanes.length; i++) {
+            Deque<PendingEvent> lane = lanes[i];
+            PendingEvent pendingEvent;
+            while ((pendingEvent = lane.pollFirst()) != null) {
+                if (pendingEvent.event == null) {// dropped
+                    droppedInLanes[i]--;
+                    continue;
+                }
+
+                SignalQueue signalQueue = pendingEvent.signalQueue;
+                if (signalQueue.eventPolicy.type == EventPolicy.Type.CONFLATE) {
+                    signalQueue.pendingByKey.remove(pendingEvent.conflationKey);
+                } else if (signalQueue.eventPolicy.type == EventPolicy.Type.DROP_OLDEST) {
+                    signalQueue.pending.pollFirst();// events of a signal share a lane, so it is the head
+                }
+                signalQueue.pendingCount--;
+                size--;
+                return pendingEvent.event;
+            }
+        }
+
+        return null;
+    }
+
+    private SignalQueue signalQueueOf(IEventSignal eventSignal) {
+        return signalQueues.computeIfAbsent(eventSignal, k -> new SignalQueue(EventPolicy.DEFAULT));
+    }
+
+    private static class SignalQueue {
+        private final EventPolicy eventPolicy;
+        private final Deque<PendingEvent> pending = new ArrayDeque<>();
+        private final Map<Object, PendingEvent> pendingByKey = Maps.newHashMap();
+        private int pendingCount;
+        private long droppedCount;
+        private long conflatedCount;
+
+        private SignalQueue(EventPolicy eventPolicy) {
+            this.eventPolicy = eventPolicy;
+        }
+    }
+
+    private static class PendingEvent {
+        private StateMachineEvent event;
+        private final SignalQueue signalQueue;
+        private final Object conflationKey;
+
+        private PendingEvent(StateMachineEvent event, SignalQueue signalQueue, Object conflationKey) {
+            this.event = event;
+            this.signalQueue = signalQueue;
+            this.conflationKey = conflationKey;
+        }
+    }
+}
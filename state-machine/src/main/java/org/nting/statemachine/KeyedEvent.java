@@ -0,0 +1,20 @@
+package org.nting.statemachine;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+
+// An event addressed to the state machine identified by the key.
+public class KeyedEvent<K> {
+    public final K key;
+    public final StateMachineEvent event;
+
+    public KeyedEvent(K key, StateMachineEvent event) {
+        this.key = Preconditions.checkNotNull(key);
+        this.event = Preconditions.checkNotNull(event);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this).add("key", key).add("event", event).toString();
+    }
+}
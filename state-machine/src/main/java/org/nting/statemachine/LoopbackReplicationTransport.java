@@ -0,0 +1,48 @@
+package org.nting.statemachine;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Hands the batches over to a follower in the same process.
+public class LoopbackReplicationTransport implements ReplicationTransport {
+
+    private static final byte[] CLOSED = new byte[0];
+
+    private final BlockingQueue<byte[]> batches = new LinkedBlockingQueue<>();
+    private volatile boolean closed;
+
+    @Override
+    public void send(byte[] batch) throws IOException {
+        if (closed) {
+            throw new IOException("Transport is closed");
+        }
+        batches.add(batch);
+    }
+
+    @Override
+    public byte[] receive() throws InterruptedException {
+        byte[] batch = batches.take();
+        if (batch == CLOSED) {
+            batches.add(CLOSED);// for the other receivers
+            return null;
+        }
+        return batch;
+    }
+
+    // Returns the next batch, or null if there is none.
+    byte[] poll() {
+        byte[] batch = batches.poll();
+        if (batch == CLOSED) {
+            batches.add(CLOSED);
+            return null;
+        }
+        return batch;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        batches.add(CLOSED);
+    }
+}
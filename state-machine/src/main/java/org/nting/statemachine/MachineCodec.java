@@ -0,0 +1,14 @@
+package org.nting.statemachine;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+// Serializes a state machine, or the object owning it, for passivation. StateMachine.writeConfiguration() and
+// readConfiguration() take care of the machine itself, the codec adds the state of the owner.
+public interface MachineCodec<M> {
+
+    void write(M machine, DataOutput output) throws IOException;
+
+    M read(DataInput input) throws IOException;
+}
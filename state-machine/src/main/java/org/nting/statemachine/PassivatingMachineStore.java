@@ -0,0 +1,281 @@
+package org.nting.statemachine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+// Keeps a working set of state machines (or of the objects owning them) in memory and passivates the rest into a
+// ColdStore. A machine is passivated when it is idle for longer than the threshold (see passivateIdle()), or when
+// more machines are in memory than the budget, in which case the least recently used ones are passivated. The next
+// execute() on the key reactivates it transparently, and deletes its record from the cold store.
+//
+// Only the machines in memory take heap space: a passivated key is only known by the cold store, which indexes its
+// records off-heap and reuses the space of the deleted ones. The cold store addresses the records by the encoded key,
+// which has to be unique per key (by default the UTF-8 bytes of its toString()).
+//
+// Calls of execute() on the same key are serialized, calls on different keys run in parallel. A key is only ever
+// held by one slot, so the machine of a key exists either in memory or in the cold store.
+//
+// A machine which fails to be passivated (e.g. the disk is full or the codec fails) is logged and kept in memory, the
+// other machines are passivated as usual, and the failure doesn't reach the execute() call which triggered the
+// eviction.
+public class PassivatingMachineStore<K, M> {
+
+    // Evicting a tenth of the budget at once amortizes the cost of finding the least recently used ones.
+    private static final int EVICTION_DIVISOR = 10;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Function<? super K, ? extends M> factory;
+    private final MachineCodec<M> machineCodec;
+    private final Function<? super K, byte[]> keyEncoder;
+    private final ColdStore coldStore;
+    private final int memoryBudget;
+    private final long idleThresholdNanos;
+
+    private final ConcurrentMap<K, Slot<M>> slots = new ConcurrentHashMap<>();// of the machines in memory
+    private final AtomicInteger hotCount = new AtomicInteger();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder rehydrationCount = new LongAdder();
+    private final LongAdder rehydrationNanos = new LongAdder();
+    private final LongAccumulator maxRehydrationNanos = new LongAccumulator(Math::max, 0);
+    private final LongAdder passivationCount = new LongAdder();
+    private final LongAdder passivationFailureCount = new LongAdder();
+
+    public PassivatingMachineStore(Function<? super K, ? extends M> factory, MachineCodec<M> machineCodec,
+            ColdStore coldStore, int memoryBudget, long idleThreshold, TimeUnit unit) {
+        this(factory, machineCodec, key -> String.valueOf(key).getBytes(StandardCharsets.UTF_8), coldStore,
+                memoryBudget, idleThreshold, unit);
+    }
+
+    public PassivatingMachineStore(Function<? super K, ? extends M> factory, MachineCodec<M> machineCodec,
+            Function<? super K, byte[]> keyEncoder, ColdStore coldStore, int memoryBudget, long idleThreshold,
+            TimeUnit unit) {
+        Preconditions.checkArgument(memoryBudget > 0);
+
+        this.factory = factory;
+        this.machineCodec = machineCodec;
+        this.keyEncoder = keyEncoder;
+        this.coldStore = coldStore;
+        this.memoryBudget = memoryBudget;
+        idleThresholdNanos = unit.toNanos(idleThreshold);
+    }
+
+    public void execute(K key, Consumer<? super M> action) {
+        while (true) {
+            Slot<M> slot = slots.computeIfAbsent(key, k -> new Slot<>());
+            synchronized (slot) {
+                if (slot.removed) {
+                    continue;// passivated meanwhile, its record is in the cold store by now
+                }
+
+                if (slot.machine != null) {
+                    hitCount.increment();
+                } else {
+                    missCount.increment();
+                    slot.machine = reactivate(key);
+                    hotCount.incrementAndGet();
+                }
+                slot.lastAccessNanos = System.nanoTime();
+
+                action.accept(slot.machine);
+            }
+            break;
+        }
+
+        if (hotCount.get() > memoryBudget) {
+            evictLeastRecentlyUsed();
+        }
+    }
+
+    public void passivateIdle() {
+        long now = System.nanoTime();
+        slots.forEach((key, slot) -> {
+            if (now - slot.lastAccessNanos > idleThresholdNanos) {
+                tryPassivate(key, slot);
+            }
+        });
+    }
+
+    public ScheduledFuture<?> schedulePassivation(ScheduledExecutorService executorService, long period,
+            TimeUnit unit) {
+        return executorService.scheduleWithFixedDelay(() -> {
+            try {
+                passivateIdle();
+            } catch (RuntimeException e) {
+                logger.error("Failed to passivate the idle machines", e);// the next run tries again
+            }
+        }, period, period, unit);
+    }
+
+    public boolean isInMemory(K key) {
+        return slots.containsKey(key);
+    }
+
+    public int getInMemoryCount() {
+        return hotCount.get();
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public long getRehydrationCount() {
+        return rehydrationCount.sum();
+    }
+
+    public long getAverageRehydrationNanos() {
+        long count = rehydrationCount.sum();
+        return count > 0 ? rehydrationNanos.sum() / count : 0;
+    }
+
+    public long getMaxRehydrationNanos() {
+        return maxRehydrationNanos.get();
+    }
+
+    public long getPassivationCount() {
+        return passivationCount.sum();
+    }
+
+    public long getPassivationFailureCount() {
+        return passivationFailureCount.sum();
+    }
+
+    private void evictLeastRecentlyUsed() {
+        if (!evicting.compareAndSet(false, true)) {
+            return;// an other thread is evicting
+        }
+
+        try {
+            int evictionCount = hotCount.get() - (memoryBudget - memoryBudget / EVICTION_DIVISOR);
+            if (evictionCount <= 0) {
+                return;
+            }
+
+            // Access times are captured first, as they keep changing during the sort.
+            List<Candidate<K, M>> candidates = Lists.newArrayListWithCapacity(hotCount.get());
+            slots.forEach((key, slot) -> candidates.add(new Candidate<>(key, slot, slot.lastAccessNanos)));
+            candidates.sort(Comparator.comparingLong(candidate -> candidate.lastAccessNanos));
+            // The machines which fail to be passivated are skipped, the next ones are evicted in their place.
+            for (int i = 0; evictionCount > 0 && i < candidates.size(); i++) {
+                if (tryPassivate(candidates.get(i).key, candidates.get(i).slot)) {
+                    evictionCount--;
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    // Returns false, after logging the failure, if the machine stays in memory.
+    private boolean tryPassivate(K key, Slot<M> slot) {
+        try {
+            passivate(key, slot);
+            return true;
+        } catch (RuntimeException e) {
+            passivationFailureCount.increment();
+            logger.error("Failed to passivate {}, it is kept in memory", key, e);
+            return false;
+        }
+    }
+
+    private void passivate(K key, Slot<M> slot) {
+        synchronized (slot) {
+            if (slot.removed) {
+                return;
+            }
+
+            if (slot.machine != null) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (DataOutputStream output = new DataOutputStream(bytes)) {
+                    machineCodec.write(slot.machine, output);
+                    output.flush();
+                    coldStore.put(keyEncoder.apply(key), bytes.toByteArray());
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to passivate " + key, e);
+                }
+
+                slot.machine = null;
+                hotCount.decrementAndGet();
+                passivationCount.increment();
+            }// else the machine couldn't be created or reactivated
+
+            slot.removed = true;
+            slots.remove(key, slot);
+        }
+    }
+
+    // The record is deleted once the machine is read, so a failure leaves it in the cold store.
+    private M reactivate(K key) {
+        byte[] encodedKey = keyEncoder.apply(key);
+        long start = System.nanoTime();
+        M machine;
+        try {
+            byte[] data = coldStore.get(encodedKey);
+            if (data == null) {
+                return factory.apply(key);
+            }
+
+            try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(data))) {
+                machine = machineCodec.read(input);
+            }
+            coldStore.delete(encodedKey);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to rehydrate " + key, e);
+        }
+
+        long elapsedNanos = System.nanoTime() - start;
+        rehydrationCount.increment();
+        rehydrationNanos.add(elapsedNanos);
+        maxRehydrationNanos.accumulate(elapsedNanos);
+        return machine;
+    }
+
+    private static class Candidate<K, M> {
+        private final K key;
+        private final Slot<M> slot;
+        private final long lastAccessNanos;
+
+        private Candidate(K key, Slot<M> slot, long lastAccessNanos) {
+            this.key = key;
+            this.slot = slot;
+            this.lastAccessNanos = lastAccessNanos;
+        }
+    }
+
+    private static class Slot<M> {
+        private M machine;// null until created or reactivated
+        private boolean removed;// by passivation, the key needs a new slot
+        private volatile long lastAccessNanos;
+    }
+}
@@ -0,0 +1,142 @@
+package org.nting.statemachine;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+// Counts (and optionally lists the keys of) the registered state machines per current state name. The index is
+// updated by the subscriber of every machine on its own dispatching thread, through LongAdders and concurrent sets,
+// so machines dispatching in parallel don't contend, and it can be queried concurrently from any thread.
+//
+// Register a machine after its initialization, from the thread which dispatches to it. StateMachine.reset() removes
+// the key from the index, register it again to keep tracking the machine. Registering a key again replaces its
+// previous registration, e.g. after StateMachine.restore(), which doesn't notify the subscribers. The replaced
+// registration is removed from its machine, which mustn't be dispatching meanwhile (e.g. it was handed over to the
+// replacement, or it is the same machine).
+public class PopulationIndex<K> {
+
+    private final boolean membersTracked;
+    private final ConcurrentMap<String, StateEntry<K>> stateEntries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<K, Tracker> trackers = new ConcurrentHashMap<>();
+
+    public PopulationIndex(boolean membersTracked) {
+        this.membersTracked = membersTracked;
+    }
+
+    public Subscription register(K key, StateMachine stateMachine) {
+        Preconditions.checkNotNull(key);
+
+        Tracker tracker = new Tracker(key, stateEntryOf(stateMachine.getState()));
+        Subscription subscription = stateMachine.subscribe(tracker);
+        Subscription resetSubscription = stateMachine.onReset(() -> {
+            subscription.unsubscribe();
+            unregister(tracker);
+        });
+        tracker.subscription = () -> {
+            subscription.unsubscribe();
+            resetSubscription.unsubscribe();
+        };
+
+        Tracker replacedTracker = trackers.put(key, tracker);
+        if (replacedTracker != null) {
+            replacedTracker.unregister();
+            replacedTracker.subscription.unsubscribe();
+        }
+        return () -> {
+            tracker.subscription.unsubscribe();
+            unregister(tracker);
+        };
+    }
+
+    private void unregister(Tracker tracker) {
+        tracker.unregister();
+        trackers.remove(tracker.key, tracker);
+    }
+
+    public long count(String stateName) {
+        StateEntry<K> stateEntry = stateEntries.get(stateName);
+        return stateEntry != null ? stateEntry.count.sum() : 0;
+    }
+
+    public Map<String, Long> counts() {
+        Map<String, Long> counts = Maps.newHashMap();
+        stateEntries.forEach((stateName, stateEntry) -> counts.put(stateName, stateEntry.count.sum()));
+        return counts;
+    }
+
+    // Returns a snapshot of the keys of the machines in the state.
+    public Set<K> members(String stateName) {
+        Preconditions.checkState(membersTracked, "Members are not tracked");
+
+        StateEntry<K> stateEntry = stateEntries.get(stateName);
+        return stateEntry != null ? ImmutableSet.copyOf(stateEntry.members) : Collections.emptySet();
+    }
+
+    private StateEntry<K> stateEntryOf(State state) {
+        StateEntry<K> stateEntry = stateEntries.get(state.stateName);// lock-free for known states
+        if (stateEntry == null) {
+            stateEntry = stateEntries.computeIfAbsent(state.stateName, k -> new StateEntry<>(membersTracked));
+        }
+        return stateEntry;
+    }
+
+    private class Tracker implements Consumer<State> {
+        private final K key;
+        private StateEntry<K> stateEntry;// null when unregistered
+        private Subscription subscription;// of the subscriber and the reset listener
+
+        private Tracker(K key, StateEntry<K> stateEntry) {
+            this.key = key;
+            this.stateEntry = stateEntry;
+            stateEntry.add(key);
+        }
+
+        @Override
+        public void accept(State state) {
+            StateEntry<K> newStateEntry = stateEntryOf(state);
+            if (stateEntry != null && newStateEntry != stateEntry) {
+                newStateEntry.add(key);
+                stateEntry.remove(key);
+                stateEntry = newStateEntry;
+            }
+        }
+
+        private void unregister() {
+            if (stateEntry != null) {
+                stateEntry.remove(key);
+                stateEntry = null;
+            }
+        }
+    }
+
+    private static class StateEntry<K> {
+        private final LongAdder count = new LongAdder();
+        private final Set<K> members;
+
+        private StateEntry(boolean membersTracked) {
+            members = membersTracked ? ConcurrentHashMap.newKeySet() : null;
+        }
+
+        private void add(K key) {
+            count.increment();
+            if (members != null) {
+                members.add(key);
+            }
+        }
+
+        private void remove(K key) {
+            count.decrement();
+            if (members != null) {
+                members.remove(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package org.nting.statemachine;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Function;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+// Replays a stream of keyed events through fresh state machines (one per key), with tracing and subscribers
+// disabled. Keys are hashed into as many partitions as the parallelism of the pool, the events of a key are always
+// replayed in order by the same partition. The stream is read in batches, the next batch is read while the current
+// one is replayed, so only two batches are held in memory.
+public class ReplayEngine<K> {
+
+    public static final int DEFAULT_BATCH_SIZE = 10_000;
+
+    private final ForkJoinPool forkJoinPool;
+    private final int batchSize;
+
+    public ReplayEngine(ForkJoinPool forkJoinPool) {
+        this(forkJoinPool, DEFAULT_BATCH_SIZE);
+    }
+
+    public ReplayEngine(ForkJoinPool forkJoinPool, int batchSize) {
+        Preconditions.checkArgument(batchSize > 0);
+
+        this.forkJoinPool = forkJoinPool;
+        this.batchSize = batchSize;
+    }
+
+    // Returns the name of the final state per key.
+    public Map<K, String> replay(Iterator<KeyedEvent<K>> events, Function<? super K, StateMachine> machineFactory) {
+        Map<K, String> finalStates = Maps.newHashMap();
+        for (Partition<K> partition : run(events, ImmutableList.of(machineFactory))) {
+            partition.replicas.forEach((key, replica) -> finalStates.put(key, replica.finalStateName(0)));
+        }
+        return finalStates;
+    }
+
+    // Replays the events through the machines of both definitions side by side.
+    public Map<K, Divergence> compare(Iterator<KeyedEvent<K>> events,
+            Function<? super K, StateMachine> machineFactoryA, Function<? super K, StateMachine> machineFactoryB) {
+        Map<K, Divergence> divergences = Maps.newHashMap();
+        for (Partition<K> partition : run(events, ImmutableList.of(machineFactoryA, machineFactoryB))) {
+            partition.replicas.forEach((key, replica) -> divergences.put(key, new Divergence(
+                    replica.finalStateName(0), replica.finalStateName(1), replica.eventCount,
+                    replica.firstDivergentEvent)));
+        }
+        return divergences;
+    }
+
+    private List<Partition<K>> run(Iterator<KeyedEvent<K>> events,
+            List<Function<? super K, StateMachine>> machineFactories) {
+        int partitionCount = forkJoinPool.getParallelism();
+        List<Partition<K>> partitions = Lists.newArrayListWithCapacity(partitionCount);
+        for (int i = 0; i < partitionCount; i++) {
+            partitions.add(new Partition<>(machineFactories));
+        }
+
+        List<List<KeyedEvent<K>>> batch = readBatch(events, partitionCount);
+        while (batch != null) {
+            List<ForkJoinTask<?>> tasks = Lists.newArrayListWithCapacity(partitionCount);
+            for (int i = 0; i < partitionCount; i++) {
+                List<KeyedEvent<K>> partitionEvents = batch.get(i);
+                if (!partitionEvents.isEmpty()) {
+                    Partition<K> partition = partitions.get(i);
+                    tasks.add(forkJoinPool.submit(() -> partition.replay(partitionEvents)));
+                }
+            }
+
+            batch = readBatch(events, partitionCount);
+            tasks.forEach(ForkJoinTask::join);
+        }
+
+        return partitions;
+    }
+
+    private List<List<KeyedEvent<K>>> readBatch(Iterator<KeyedEvent<K>> events, int partitionCount) {
+        if (!events.hasNext()) {
+            return null;
+        }
+
+        List<List<KeyedEvent<K>>> batch = Lists.newArrayListWithCapacity(partitionCount);
+        for (int i = 0; i < partitionCount; i++) {
+            batch.add(Lists.newArrayList());
+        }
+        for (int i = 0; i < batchSize && events.hasNext(); i++) {
+            KeyedEvent<K> keyedEvent = events.next();
+            batch.get(partitionOf(keyedEvent.key, partitionCount)).add(keyedEvent);
+        }
+        return batch;
+    }
+
+    private static int partitionOf(Object key, int partitionCount) {
+        int hash = key.hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), partitionCount);
+    }
+
+    public static class Divergence {
+        public final String finalStateA;
+        public final String finalStateB;
+        public final long eventCount;
+        // Number of events replayed when the states first differed, -1 if they never did.
+        public final long firstDivergentEvent;
+
+        public Divergence(String finalStateA, String finalStateB, long eventCount, long firstDivergentEvent) {
+            this.finalStateA = finalStateA;
+            this.finalStateB = finalStateB;
+            this.eventCount = eventCount;
+            this.firstDivergentEvent = firstDivergentEvent;
+        }
+
+        public boolean isDivergent() {
+            return firstDivergentEvent >= 0;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this).add("finalStateA", finalStateA).add("finalStateB", finalStateB)
+                    .add("eventCount", eventCount).add("firstDivergentEvent", firstDivergentEvent).toString();
+        }
+    }
+
+    // Only accessed by one task at a time, submit() and join() publish the replicas between the tasks.
+    private static class Partition<K> {
+        private final List<Function<? super K, StateMachine>> machineFactories;
+        private final Map<K, Replica> replicas = Maps.newHashMap();
+
+        private Partition(List<Function<? super K, StateMachine>> machineFactories) {
+            this.machineFactories = machineFactories;
+        }
+
+        private void replay(List<KeyedEvent<K>> events) {
+            for (KeyedEvent<K> keyedEvent : events) {
+                replicas.computeIfAbsent(keyedEvent.key, this::newReplica).dispatch(keyedEvent.event);
+            }
+        }
+
+        private Replica newReplica(K key) {
+            StateMachine[] stateMachines = new StateMachine[machineFactories.size()];
+            for (int i = 0; i < stateMachines.length; i++) {
+                stateMachines[i] = machineFactories.get(i).apply(key);
+                stateMachines[i].setTracingEnabled(false);
+                stateMachines[i].setSubscribersEnabled(false);
+            }
+            return new Replica(stateMachines);
+        }
+    }
+
+    private static class Replica {
+        private final StateMachine[] stateMachines;
+        private long eventCount;
+        private long firstDivergentEvent = -1;
+
+        private Replica(StateMachine[] stateMachines) {
+            this.stateMachines = stateMachines;
+            checkDivergence();
+        }
+
+        private void dispatch(StateMachineEvent stateMachineEvent) {
+            for (StateMachine stateMachine : stateMachines) {
+                stateMachine.dispatch(stateMachineEvent);
+            }
+            eventCount++;
+            checkDivergence();
+        }
+
+        private void checkDivergence() {
+            if (firstDivergentEvent < 0 && stateMachines.length == 2
+                    && !stateMachines[0].getState().stateName.equals(stateMachines[1].getState().stateName)) {
+                firstDivergentEvent = eventCount;
+            }
+        }
+
+        private String finalStateName(int index) {
+            return stateMachines[index].getState().stateName;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package org.nting.statemachine;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+// Applies the transitions streamed by a ReplicationPrimary to its own state machines, one per key, created on the
+// first transition of the key and dropped when the primary detaches the key. The transitions are applied by
+// StateMachine.replicate(), so no entry, exit or transition action runs on the follower. A transition older than the
+// one already applied to its key, or recorded by an attachment the key has been attached again since, is ignored,
+// and a batch received twice is skipped.
+public class ReplicationFollower {
+
+    // A state machine of the follower, with the lookup of its states by name.
+    public static class Replica {
+        public final StateMachine stateMachine;
+        public final Function<String, State> stateByName;
+        private long epoch;// of the latest attachment of the key
+        private long appliedSequence;// sequence of the last transition applied from that attachment
+
+        public Replica(StateMachine stateMachine, Function<String, State> stateByName) {
+            this.stateMachine = Preconditions.checkNotNull(stateMachine);
+            this.stateByName = Preconditions.checkNotNull(stateByName);
+        }
+    }
+
+    // An attachment of the primary, by its key id.
+    private static class Binding {
+        private final String key;
+        private final long epoch;
+        private final Replica replica;
+
+        private Binding(String key, long epoch, Replica replica) {
+            this.key = key;
+            this.epoch = epoch;
+            this.replica = replica;
+        }
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final ReplicationTransport transport;
+    private final Function<String, Replica> replicaFactory;
+    private final Map<String, Replica> replicas = Maps.newConcurrentMap();
+
+    // Dictionaries of the stream, indexed by the ids of the primary. Used by the applying thread only.
+    private final List<Binding> bindingsById = Lists.newArrayList();
+    private final List<String> stateNamesById = Lists.newArrayList();
+
+    private volatile long appliedCount;
+    private volatile long recordedCount;
+    private volatile long lastAppliedNanos;
+
+    public ReplicationFollower(ReplicationTransport transport, Function<String, Replica> replicaFactory) {
+        this.transport = transport;
+        this.replicaFactory = replicaFactory;
+    }
+
+    // Receives and applies the batches until the transport is closed.
+    public Future<?> start(ExecutorService executorService) {
+        return executorService.submit(() -> {
+            try {
+                for (byte[] batch = transport.receive(); batch != null; batch = transport.receive()) {
+                    apply(batch);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                logger.error("Replication stopped after {} transitions", appliedCount, e);
+            }
+        });
+    }
+
+    public void apply(byte[] batch) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(batch));
+        long firstTransition = input.readLong();
+        int transitionCount = input.readInt();
+        long recorded = input.readLong();
+        int entryCount = input.readInt();
+        if (firstTransition < appliedCount) {
+            logger.warn("Skipping the batch of transitions from {}, {} are applied already", firstTransition,
+                    appliedCount);
+            return;
+        }
+        if (firstTransition > appliedCount) {
+            logger.error("Missing transitions between {} and {}", appliedCount, firstTransition);
+        }
+
+        for (int i = 0; i < entryCount; i++) {
+            byte type = input.readByte();
+            switch (type) {
+            case ReplicationPrimary.DEFINE_KEY:
+                defineKey(readVarInt(input), readVarLong(input), input.readUTF());
+                break;
+            case ReplicationPrimary.DEFINE_STATE:
+                define(stateNamesById, readVarInt(input), input.readUTF());
+                break;
+            case ReplicationPrimary.TRANSITION:
+                applyTransition(bindingOf(readVarInt(input)), readVarLong(input),
+                        stateNamesById.get(readVarInt(input)));
+                break;
+            case ReplicationPrimary.RELEASE_KEY:
+                releaseKey(readVarInt(input));
+                break;
+            default:
+                throw new IOException("Unknown replication entry: " + type);
+            }
+        }
+
+        appliedCount = firstTransition + transitionCount;
+        recordedCount = recorded;
+        lastAppliedNanos = System.nanoTime();
+    }
+
+    public StateMachine getStateMachine(String key) {
+        Replica replica = replicas.get(key);
+        return replica != null ? replica.stateMachine : null;
+    }
+
+    // Number of transitions received, including the ignored older ones. Comparable to
+    // ReplicationPrimary.getRecordedCount().
+    public long getAppliedCount() {
+        return appliedCount;
+    }
+
+    // Number of transitions the primary recorded, but the follower hasn't applied yet, as of the last batch.
+    public long getReplicationLag() {
+        return Math.max(0, recordedCount - appliedCount);
+    }
+
+    // Time since the last batch was applied, measured by the clock of the follower, or -1 before the first batch.
+    // The primary sends a batch on each flush even without transitions, so it grows beyond the flush period only
+    // when the follower falls behind or the primary stops flushing.
+    public long getReplicationLagMillis() {
+        long appliedNanos = lastAppliedNanos;
+        return appliedNanos != 0 ? (System.nanoTime() - appliedNanos) / 1_000_000 : -1;
+    }
+
+    int getKeyIdCount() {
+        return bindingsById.size();
+    }
+
+    int getStateNameCount() {
+        return stateNamesById.size();
+    }
+
+    private void defineKey(int id, long epoch, String key) throws IOException {
+        Replica replica = replicas.computeIfAbsent(key, replicaFactory);
+        if (epoch > replica.epoch) {
+            replica.epoch = epoch;
+            replica.appliedSequence = 0;// the sequence restarts with the new attachment
+        }
+
+        Binding binding = new Binding(key, epoch, replica);
+        if (id == bindingsById.size()) {
+            bindingsById.add(binding);
+        } else if (id < bindingsById.size() && bindingsById.get(id) == null) {
+            bindingsById.set(id, binding);
+        } else {
+            throw new IOException("Unexpected replication key id: " + id);
+        }
+    }
+
+    private void releaseKey(int id) throws IOException {
+        Binding binding = bindingOf(id);
+        bindingsById.set(id, null);
+        if (binding.epoch == binding.replica.epoch) {
+            replicas.remove(binding.key, binding.replica);
+        }
+    }
+
+    private Binding bindingOf(int id) throws IOException {
+        Binding binding = id < bindingsById.size() ? bindingsById.get(id) : null;
+        if (binding == null) {
+            throw new IOException("Undefined replication key id: " + id);
+        }
+        return binding;
+    }
+
+    private void applyTransition(Binding binding, long sequence, String stateName) {
+        Replica replica = binding.replica;
+        if (binding.epoch != replica.epoch || sequence <= replica.appliedSequence) {
+            return;
+        }
+
+        State state = Preconditions.checkNotNull(replica.stateByName.apply(stateName), "Unknown state: %s",
+                stateName);
+        replica.stateMachine.replicate(state);
+        replica.appliedSequence = sequence;
+    }
+
+    private static <T> void define(List<T> dictionary, int id, T value) throws IOException {
+        if (id != dictionary.size()) {
+            throw new IOException("Unexpected replication id: " + id + ", expected " + dictionary.size());
+        }
+        dictionary.add(value);
+    }
+
+    private static int readVarInt(DataInput input) throws IOException {
+        return Math.toIntExact(readVarLong(input));
+    }
+
+    private static long readVarLong(DataInput input) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            byte b = input.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
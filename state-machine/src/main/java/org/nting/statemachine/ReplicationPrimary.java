@@ -0,0 +1,330 @@
+package org.nting.statemachine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+// Streams the transitions of the attached state machines to a ReplicationFollower. The dispatching thread only
+// appends the new state to a buffer of its own, so machines dispatching in parallel don't contend; the buffers are
+// drained, encoded and sent by flush() (see scheduleFlush()), while they are being filled again. A flush sends a
+// batch even if it is empty, so the follower learns how many transitions were recorded meanwhile. When a send fails,
+// the batch is kept and the transitions of the next flushes are appended to it, so a down transport holds one batch.
+//
+// The transitions of an attachment are numbered by the attachment, the follower applies the latest state of a key and
+// ignores the older ones, which may arrive later when the machine moved to an other thread. Each attachment has an
+// epoch, so when a key is attached again the follower continues from the new attachment and ignores the old one.
+//
+// Batch: number of transitions sent before it (long), number of transitions in it (int), number of transitions
+// recorded at the flush (long), entry count (int), then the entries, each starting with its type (byte):
+// - DEFINE_KEY: key id (varint), epoch of the attachment (varint), key (UTF)
+// - DEFINE_STATE: state id (varint), state name (UTF)
+// - TRANSITION: key id (varint), sequence of the transition within the attachment (varint), state id (varint)
+// - RELEASE_KEY: key id (varint), the id may be defined again for an other key
+// Ids are defined in the stream before their first use. State ids are interned by name, key ids are reused once
+// released, so both dictionaries stay as small as the set of names and attached keys.
+public class ReplicationPrimary {
+
+    static final byte DEFINE_KEY = 0;
+    static final byte DEFINE_STATE = 1;
+    static final byte TRANSITION = 2;
+    static final byte RELEASE_KEY = 3;
+
+    private static final int INITIAL_BUFFER_CAPACITY = 256;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final ReplicationTransport transport;
+    private final AtomicLong epochs = new AtomicLong();
+    private final LongAdder recordedCount = new LongAdder();
+    private final Set<Buffer> buffers = ConcurrentHashMap.newKeySet();
+    private final ThreadLocal<Buffer> threadLocalBuffer = ThreadLocal.withInitial(this::createBuffer);
+
+    // Guarded by flushLock, the batches must be sent in order.
+    private final Object flushLock = new Object();
+    private final Map<String, Integer> stateIds = Maps.newHashMap();
+    private final Deque<Integer> releasedKeyIds = new ArrayDeque<>();
+    private int keyCount;
+    private long sentCount;
+    private UnsentBatch unsentBatch;
+
+    public ReplicationPrimary(ReplicationTransport transport) {
+        this.transport = transport;
+    }
+
+    // Replicates the current state, then the state after each dispatch which changes it. Attach initialized state
+    // machines with subscribers enabled, the same key must identify the machine on the follower. A key attached
+    // again replaces the previous attachment on the follower.
+    //
+    // The machine is detached when the subscription is cancelled or the machine is reset (e.g. when it is released
+    // to a StateMachinePool), and the follower drops its replica of the key; attach it again after the reset.
+    public Subscription attach(String key, StateMachine stateMachine) {
+        Attachment attachment = new Attachment(key, epochs.incrementAndGet());
+        attachment.record(stateMachine.getState());
+        Subscription subscription = stateMachine.subscribe(attachment::record);
+        Subscription resetSubscription = stateMachine.onReset(attachment::detach);
+        return () -> {
+            subscription.unsubscribe();
+            resetSubscription.unsubscribe();
+            attachment.detach();
+        };
+    }
+
+    // Number of transitions recorded so far.
+    public long getRecordedCount() {
+        return recordedCount.sum();
+    }
+
+    // Transitions in the batch kept after a failed send.
+    public int getUnsentTransitionCount() {
+        synchronized (flushLock) {
+            return unsentBatch != null ? unsentBatch.transitionCount : 0;
+        }
+    }
+
+    public void flush() throws IOException {
+        synchronized (flushLock) {
+            long recorded = recordedCount.sum();// before draining, so it covers every drained transition
+            List<Buffer> drainedBuffers = Lists.newArrayList();
+            for (Buffer buffer : buffers) {
+                Buffer drainedBuffer = buffer.drain();
+                if (drainedBuffer != null) {
+                    drainedBuffers.add(drainedBuffer);
+                }
+                if (!buffer.isOwnerAlive() && buffer.isEmpty()) {
+                    buffers.remove(buffer);
+                }
+            }
+
+            if (unsentBatch == null) {
+                unsentBatch = new UnsentBatch(sentCount);
+            }
+            sentCount += encode(drainedBuffers, unsentBatch);
+            transport.send(unsentBatch.toByteArray(recorded));
+            unsentBatch = null;
+        }
+    }
+
+    public ScheduledFuture<?> scheduleFlush(ScheduledExecutorService executorService, long period, TimeUnit unit) {
+        return executorService.scheduleWithFixedDelay(() -> {
+            try {
+                flush();
+            } catch (IOException e) {
+                logger.error("Failed to send the replication batch, {} transitions are kept",
+                        getUnsentTransitionCount(), e);
+            }
+        }, period, period, unit);
+    }
+
+    // Appends the drained entries to the batch, returns the number of transitions.
+    private int encode(List<Buffer> drainedBuffers, UnsentBatch batch) throws IOException {
+        DataOutputStream output = batch.output;
+        int transitionCount = 0;
+        for (Buffer drainedBuffer : drainedBuffers) {
+            for (int i = 0; i < drainedBuffer.count; i++) {
+                Attachment attachment = drainedBuffer.attachments[i];
+                State state = drainedBuffer.states[i];
+                if (state == null) {
+                    release(attachment, batch);
+                    continue;
+                }
+
+                transitionCount++;
+                if (attachment.released) {
+                    continue;// recorded before the detach, but drained from an other buffer after it
+                }
+                if (attachment.keyId < 0) {
+                    attachment.keyId = releasedKeyIds.isEmpty() ? keyCount++ : releasedKeyIds.pollFirst();
+                    output.writeByte(DEFINE_KEY);
+                    writeVarLong(output, attachment.keyId);
+                    writeVarLong(output, attachment.epoch);
+                    output.writeUTF(attachment.key);
+                    batch.entryCount++;
+                }
+                Integer stateId = stateIds.get(state.stateName);
+                if (stateId == null) {
+                    stateId = stateIds.size();
+                    stateIds.put(state.stateName, stateId);
+                    output.writeByte(DEFINE_STATE);
+                    writeVarLong(output, stateId);
+                    output.writeUTF(state.stateName);
+                    batch.entryCount++;
+                }
+
+                output.writeByte(TRANSITION);
+                writeVarLong(output, attachment.keyId);
+                writeVarLong(output, drainedBuffer.sequences[i]);
+                writeVarLong(output, stateId);
+                batch.entryCount++;
+            }
+            drainedBuffer.clear();
+        }
+        batch.transitionCount += transitionCount;
+        return transitionCount;
+    }
+
+    private void release(Attachment attachment, UnsentBatch batch) throws IOException {
+        attachment.released = true;
+        if (attachment.keyId >= 0) {
+            batch.output.writeByte(RELEASE_KEY);
+            writeVarLong(batch.output, attachment.keyId);
+            batch.entryCount++;
+            releasedKeyIds.addLast(attachment.keyId);
+        }
+    }
+
+    private static void writeVarLong(DataOutput output, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            output.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.writeByte((int) value);
+    }
+
+    private Buffer createBuffer() {
+        Buffer buffer = new Buffer(Thread.currentThread());
+        buffers.add(buffer);
+        return buffer;
+    }
+
+    // Entries encoded since the last successful send.
+    private static class UnsentBatch {
+        private final long firstTransition;
+        private final ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        private final DataOutputStream output = new DataOutputStream(entries);
+        private int transitionCount;
+        private int entryCount;
+
+        private UnsentBatch(long firstTransition) {
+            this.firstTransition = firstTransition;
+        }
+
+        private byte[] toByteArray(long recorded) throws IOException {
+            ByteArrayOutputStream batchBytes = new ByteArrayOutputStream(2 * Long.BYTES + 2 * Integer.BYTES
+                    + entries.size());
+            DataOutputStream batchOutput = new DataOutputStream(batchBytes);
+            batchOutput.writeLong(firstTransition);
+            batchOutput.writeInt(transitionCount);
+            batchOutput.writeLong(recorded);
+            batchOutput.writeInt(entryCount);
+            entries.writeTo(batchOutput);
+            return batchBytes.toByteArray();
+        }
+    }
+
+    private class Attachment {
+        private final String key;
+        private final long epoch;
+        private final AtomicBoolean detached = new AtomicBoolean();
+        private long sequence;// the machine is used by one thread at a time
+        private int keyId = -1;// guarded by flushLock, assigned when the key is defined in the stream
+        private boolean released;// guarded by flushLock
+
+        private Attachment(String key, long epoch) {
+            this.key = key;
+            this.epoch = epoch;
+        }
+
+        private void record(State state) {
+            threadLocalBuffer.get().add(this, ++sequence, state);
+            recordedCount.increment();
+        }
+
+        // Recorded as a transition without state.
+        private void detach() {
+            if (detached.compareAndSet(false, true)) {
+                threadLocalBuffer.get().add(this, 0, null);
+            }
+        }
+    }
+
+    // Transitions recorded by one thread. The lock is only contended while flush() drains it.
+    private static class Buffer {
+        private final WeakReference<Thread> owner;
+        private Attachment[] attachments = new Attachment[INITIAL_BUFFER_CAPACITY];
+        private long[] sequences = new long[INITIAL_BUFFER_CAPACITY];
+        private State[] states = new State[INITIAL_BUFFER_CAPACITY];
+        private int count;
+        private Buffer spare;// the drained arrays, reused once encoded
+
+        private Buffer(Thread owner) {
+            this.owner = new WeakReference<>(owner);
+        }
+
+        private Buffer() {
+            owner = null;
+        }
+
+        private synchronized void add(Attachment attachment, long sequence, State state) {
+            if (count == attachments.length) {
+                attachments = Arrays.copyOf(attachments, count * 2);
+                sequences = Arrays.copyOf(sequences, count * 2);
+                states = Arrays.copyOf(states, count * 2);
+            }
+            attachments[count] = attachment;
+            sequences[count] = sequence;
+            states[count] = state;
+            count++;
+        }
+
+        // Returns the recorded transitions, or null if there are none. Called under flushLock, the returned buffer
+        // must be cleared before the next drain.
+        private synchronized Buffer drain() {
+            if (count == 0) {
+                return null;
+            }
+
+            Buffer drained = spare != null ? spare : new Buffer();
+            Attachment[] drainedAttachments = drained.attachments;
+            long[] drainedSequences = drained.sequences;
+            State[] drainedStates = drained.states;
+
+            drained.attachments = attachments;
+            drained.sequences = sequences;
+            drained.states = states;
+            drained.count = count;
+
+            attachments = drainedAttachments;
+            sequences = drainedSequences;
+            states = drainedStates;
+            count = 0;
+            spare = drained;
+            return drained;
+        }
+
+        private synchronized boolean isEmpty() {
+            return count == 0;
+        }
+
+        private boolean isOwnerAlive() {
+            Thread thread = owner.get();
+            return thread != null && thread.isAlive();
+        }
+
+        private void clear() {
+            Arrays.fill(attachments, 0, count, null);
+            Arrays.fill(states, 0, count, null);
+            count = 0;
+        }
+    }
+}
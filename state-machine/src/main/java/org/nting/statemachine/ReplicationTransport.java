@@ -0,0 +1,13 @@
+package org.nting.statemachine;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+// Carries the batches of the replication log from the primary to the follower, in order.
+public interface ReplicationTransport extends Closeable {
+
+    void send(byte[] batch) throws IOException;
+
+    // Blocks until the next batch arrives, returns null once the transport is closed.
+    byte[] receive() throws IOException, InterruptedException;
+}
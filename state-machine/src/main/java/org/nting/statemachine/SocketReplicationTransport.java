@@ -0,0 +1,51 @@
+package org.nting.statemachine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+
+// Sends the batches as length prefixed frames over a connected socket. The primary only sends and the follower only
+// receives, so both ends wrap their side of the same connection.
+public class SocketReplicationTransport implements ReplicationTransport {
+
+    private final Socket socket;
+    private final DataOutputStream output;
+    private final DataInputStream input;
+
+    public SocketReplicationTransport(Socket socket) throws IOException {
+        this.socket = socket;
+        socket.setTcpNoDelay(true);// batches are already coalesced by the primary
+        output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    }
+
+    @Override
+    public synchronized void send(byte[] batch) throws IOException {
+        output.writeInt(batch.length);
+        output.write(batch);
+        output.flush();
+    }
+
+    @Override
+    public byte[] receive() throws IOException {
+        int length;
+        try {
+            length = input.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+
+        byte[] batch = new byte[length];
+        input.readFully(batch);
+        return batch;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,432 @@
+package org.nting.statemachine;
+
+import static org.nting.statemachine.StateMachineSignal.EMPTY;
+import static org.nting.statemachine.StateMachineSignal.ENTRY;
+import static org.nting.statemachine.StateMachineSignal.EXIT;
+import static org.nting.statemachine.StateMachineSignal.INIT;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.nting.statemachine.StateMachineFlightEvents.DispatchEvent;
+import org.nting.statemachine.StateMachineFlightEvents.EntryEvent;
+import org.nting.statemachine.StateMachineFlightEvents.ExitEvent;
+import org.nting.statemachine.StateMachineFlightEvents.StateActionEvent;
+import org.nting.statemachine.StateMachineFlightEvents.TransitionEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+public class StateMachine {
+
+    public static final int DEFAULT_RECORDER_CAPACITY = 32;
+
+    // The events of the state machine signals carry no properties, so they are shared.
+    private static final StateMachineEvent[] SIGNAL_EVENTS = new StateMachineEvent[StateMachineSignal.values().length];
+    static {
+        for (StateMachineSignal signal : StateMachineSignal.values()) {
+            SIGNAL_EVENTS[signal.ordinal()] = new StateMachineEvent(signal);
+        }
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final State topState;
+    private State currentState;
+    private State sourceState;
+    private final Map<State, State> historyStates = Maps.newHashMap();
+
+    // Targets of the choice states of the current transition, selected before it starts.
+    private final Deque<State> selectedChoiceTargets = new ArrayDeque<>();
+
+    private final List<Consumer<State>> subscribers = Lists.newLinkedList();
+    private final List<Runnable> resetListeners = Lists.newLinkedList();
+    private StateMachineEvent lastStateMachineEvent;
+
+    private final String machineId;
+    private final TransitionRecorder transitionRecorder;
+    private boolean tracingEnabled = true;
+    private boolean subscribersEnabled = true;
+
+    public StateMachine(State topState) {
+        this(topState, DEFAULT_RECORDER_CAPACITY);
+    }
+
+    public StateMachine(State topState, int recorderCapacity) {
+        this.topState = topState;
+        currentState = topState;
+        sourceState = topState;
+        machineId = topState.stateName + "@" + Integer.toHexString(System.identityHashCode(this));
+        transitionRecorder = new TransitionRecorder(recorderCapacity);
+    }
+
+    public void initialize() {
+        trigger(topState, INIT);
+    }
+
+    // Returns to the initial configuration, as if it was just created and initialized. History, subscribers and the
+    // recorded transitions are cleared, the state handlers and the tracing and subscriber settings are kept. The reset
+    // listeners are notified, then cleared as well.
+    public void reset() {
+        Lists.newArrayList(resetListeners).forEach(Runnable::run);
+        resetListeners.clear();
+
+        currentState = topState;
+        sourceState = topState;
+        historyStates.clear();
+        subscribers.clear();
+        lastStateMachineEvent = null;
+        selectedChoiceTargets.clear();
+        transitionRecorder.clear();
+
+        initialize();
+    }
+
+    // Sets the current state and the history states without running any action or notifying the subscribers, e.g.
+    // to reactivate a passivated state machine.
+    public void restore(State currentState, Map<State, State> historyStates) {
+        this.currentState = Preconditions.checkNotNull(currentState);
+        sourceState = currentState;
+        this.historyStates.clear();
+        this.historyStates.putAll(historyStates);
+        lastStateMachineEvent = null;
+    }
+
+    // Moves to the state replicated from a primary state machine without running any action. The history states are
+    // updated as if the state and its parents were entered. Subscribers are notified of the change.
+    public void replicate(State state) {
+        Preconditions.checkNotNull(state);
+
+        for (State entered = state; entered != topState; entered = getParentState(entered)) {
+            if (!entered.isPseudo) {
+                historyStates.put(getParentState(entered), entered);
+            }
+        }
+
+        State oldState = currentState;
+        currentState = state;
+        sourceState = state;
+        if (oldState != currentState && subscribersEnabled) {
+            notifySubscribers();
+        }
+    }
+
+    public void writeConfiguration(DataOutput output) throws IOException {
+        output.writeUTF(currentState.stateName);
+        output.writeInt(historyStates.size());
+        for (Map.Entry<State, State> historyState : historyStates.entrySet()) {
+            output.writeUTF(historyState.getKey().stateName);
+            output.writeUTF(historyState.getValue().stateName);
+        }
+    }
+
+    public void readConfiguration(DataInput input, Function<String, State> stateByName) throws IOException {
+        State state = stateOf(input.readUTF(), stateByName);
+        Map<State, State> historyStates = Maps.newHashMap();
+        for (int i = input.readInt(); i > 0; i--) {
+            historyStates.put(stateOf(input.readUTF(), stateByName), stateOf(input.readUTF(), stateByName));
+        }
+        restore(state, historyStates);
+    }
+
+    private State stateOf(String stateName, Function<String, State> stateByName) {
+        return Preconditions.checkNotNull(stateByName.apply(stateName), "Unknown state: %s", stateName);
+    }
+
+    public void dispatch(StateMachineEvent stateMachineEvent) {
+        lastStateMachineEvent = stateMachineEvent;
+        selectedChoiceTargets.clear();// left over if an action failed in the middle of a transition
+
+        State oldState = currentState;
+        if (tracingEnabled) {
+            dispatchTraced(stateMachineEvent);
+        } else {
+            handle(stateMachineEvent);
+        }
+
+        if (oldState != currentState && subscribersEnabled) {
+            notifySubscribers();
+        }
+    }
+
+    private void dispatchTraced(StateMachineEvent stateMachineEvent) {
+        logger.debug("Event: {}", stateMachineEvent);
+
+        State oldState = currentState;
+        transitionRecorder.recordDispatch(oldState, stateMachineEvent.getEventSignal());
+        DispatchEvent dispatchEvent = new DispatchEvent();
+        dispatchEvent.begin();
+
+        int depth;
+        try {
+            depth = handle(stateMachineEvent);
+        } catch (RuntimeException e) {
+            logger.error("Failed to dispatch {} in {}, recent transitions: {}", stateMachineEvent, machineId,
+                    transitionRecorder.dump());
+            throw e;
+        }
+
+        if (dispatchEvent.shouldCommit()) {
+            dispatchEvent.machine = machineId;
+            dispatchEvent.signal = String.valueOf(stateMachineEvent.getEventSignal());
+            dispatchEvent.state = oldState.stateName;
+            dispatchEvent.finalState = currentState.stateName;
+            dispatchEvent.depth = depth;
+            dispatchEvent.commit();
+        }
+    }
+
+    // Returns the number of state handlers the event bubbled through.
+    private int handle(StateMachineEvent stateMachineEvent) {
+        int depth = 0;
+        sourceState = currentState;
+        while (sourceState != null) {
+            depth++;
+            sourceState = sourceState.stateHandler.handle(stateMachineEvent);
+        }
+        return depth;
+    }
+
+    public State getState() {
+        return currentState;
+    }
+
+    public Map<State, State> getHistoryStates() {
+        return Collections.unmodifiableMap(historyStates);
+    }
+
+    public TransitionRecorder getTransitionRecorder() {
+        return transitionRecorder;
+    }
+
+    // Logging, the transition recorder and the Flight Recorder events.
+    public void setTracingEnabled(boolean tracingEnabled) {
+        this.tracingEnabled = tracingEnabled;
+    }
+
+    public void setSubscribersEnabled(boolean subscribersEnabled) {
+        this.subscribersEnabled = subscribersEnabled;
+    }
+
+    public Subscription subscribe(Consumer<State> subscriber) {
+        Preconditions.checkArgument(!subscribers.contains(subscriber));
+
+        subscribers.add(subscriber);
+
+        return () -> subscribers.remove(subscriber);
+    }
+
+    // Called by reset(), before the subscribers are cleared, e.g. to drop the registrations which rely on them.
+    public Subscription onReset(Runnable resetListener) {
+        Preconditions.checkArgument(!resetListeners.contains(resetListener));
+
+        resetListeners.add(resetListener);
+
+        return () -> resetListeners.remove(resetListener);
+    }
+
+    int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    int getResetListenerCount() {
+        return resetListeners.size();
+    }
+
+    private void notifySubscribers() {
+        subscribers.forEach(subscriber -> subscriber.accept(currentState));
+    }
+
+    public void transitionTo(State targetState) {
+        Preconditions.checkArgument(targetState != topState);
+        if (targetState instanceof ChoiceState && selectedChoiceTargets.isEmpty()) {
+            selectChoiceTargets((ChoiceState) targetState);
+        }
+
+        TransitionEvent transitionEvent = new TransitionEvent();
+        transitionEvent.begin();
+        State oldState = currentState;
+
+        if (getParentState(targetState) != currentState) {// initial transitions shouldn't trigger Exit events!
+            doExitUpToSourceState();
+        }
+        doTransitionTo(targetState);
+        doActivateTargetState(targetState);
+
+        commit(transitionEvent, oldState, targetState);
+    }
+
+    public void transitionToHistoryOf(State targetState, boolean isDeepHistory) {
+        Preconditions.checkArgument(targetState != topState);
+
+        TransitionEvent transitionEvent = new TransitionEvent();
+        transitionEvent.begin();
+        State oldState = currentState;
+
+        doExitUpToSourceState();
+        doTransitionTo(targetState);
+        doActivateTargetStateForHistory(targetState, isDeepHistory);
+
+        commit(transitionEvent, oldState, targetState);
+    }
+
+    // Selects the targets of the chain of choice states up front, so a choice without a matching guard fails before
+    // the configuration changes.
+    private void selectChoiceTargets(ChoiceState choiceState) {
+        StateMachineEvent triggeringEvent = lastStateMachineEvent != null ? lastStateMachineEvent
+                : SIGNAL_EVENTS[INIT.ordinal()];
+        State state = choiceState;
+        try {
+            while (state instanceof ChoiceState) {
+                state = ((ChoiceState) state).select(triggeringEvent);
+                selectedChoiceTargets.addLast(state);
+            }
+        } catch (RuntimeException e) {
+            selectedChoiceTargets.clear();
+            throw e;
+        }
+    }
+
+    private void commit(TransitionEvent transitionEvent, State oldState, State targetState) {
+        if (tracingEnabled && transitionEvent.shouldCommit()) {
+            transitionEvent.machine = machineId;
+            transitionEvent.signal = String.valueOf(currentEventSignal());
+            transitionEvent.sourceState = oldState.stateName;
+            transitionEvent.targetState = targetState.stateName;
+            transitionEvent.commit();
+        }
+    }
+
+    private void doExitUpToSourceState() {
+        State state = currentState;
+        while (state != sourceState) {
+            Preconditions.checkNotNull(state);
+
+            trigger(state, EXIT);
+            state = getParentState(state);
+        }
+    }
+
+    private void doTransitionTo(State targetState) {
+        // NOTE: Dynamic version of calling exit and entry events.
+        if (sourceState == targetState) {// transition to self
+            trigger(sourceState, EXIT);
+            trigger(sourceState, ENTRY);
+        } else if (getParentState(sourceState) == getParentState(targetState)) {// same level (most common)
+            trigger(sourceState, EXIT);
+            trigger(targetState, ENTRY);
+        } else if (currentState == getParentState(targetState)) {// initial transition
+            trigger(targetState, ENTRY);
+        } else {// different level
+            List<State> parentsOfSourceState = Lists.newLinkedList();
+            State state = sourceState;
+            while (state != topState) {
+                parentsOfSourceState.add(0, state);
+                state = getParentState(state);
+            }
+
+            List<State> parentsOfTargetState = Lists.newLinkedList();
+            state = targetState;
+            while (state != topState) {
+                parentsOfTargetState.add(0, state);
+                state = getParentState(state);
+            }
+
+            int firstNotCommonParentIndex = 0;
+            if (parentsOfSourceState.size() > 0) {// initial transition comes from topState, so
+                // parentsOfSourceState.size() is 0!
+                // The source state may be a parent of the target state (e.g. a transition to a pseudo sub state).
+                while (firstNotCommonParentIndex < parentsOfSourceState.size()
+                        && firstNotCommonParentIndex < parentsOfTargetState.size()
+                        && parentsOfSourceState.get(firstNotCommonParentIndex) == parentsOfTargetState
+                                .get(firstNotCommonParentIndex)) {
+                    firstNotCommonParentIndex++;
+                }
+            }
+            for (int i = parentsOfSourceState.size() - 1; i >= firstNotCommonParentIndex; i--) {
+                trigger(parentsOfSourceState.get(i), EXIT);
+            }
+            for (int i = firstNotCommonParentIndex; i < parentsOfTargetState.size(); i++) {
+                trigger(parentsOfTargetState.get(i), ENTRY);
+            }
+        }
+    }
+
+    private void doActivateTargetState(State targetState) {
+        if (tracingEnabled) {
+            transitionRecorder.recordTransition(currentState, targetState, currentEventSignal());
+        }
+        currentState = targetState;
+        sourceState = currentState;
+        trigger(currentState, INIT);
+    }
+
+    private void doActivateTargetStateForHistory(State targetState, boolean isDeepHistory) {
+        while (historyStates.containsKey(targetState)) {
+            targetState = historyStates.get(targetState);
+            trigger(targetState, ENTRY);
+            if (!isDeepHistory) {
+                break;
+            }
+        }
+
+        doActivateTargetState(targetState);
+    }
+
+    private State getParentState(State state) {
+        return state.stateHandler.handle(SIGNAL_EVENTS[EMPTY.ordinal()]);
+    }
+
+    private void trigger(State state, StateMachineSignal eventSignal) {
+        if (eventSignal == ENTRY && !state.isPseudo) {
+            historyStates.put(getParentState(state), state);
+        }
+
+        if (eventSignal == INIT && state instanceof ChoiceState) {
+            State targetState = selectedChoiceTargets.pollFirst();
+            if (tracingEnabled) {
+                logger.debug("State: {}, Choice: {}", state.stateName, targetState.stateName);
+            }
+            transitionTo(targetState);
+            return;
+        }
+
+        // A pseudo state requires the event properties in order to evaluate its condition when handling INIT signal.
+        StateMachineEvent stateMachineEvent = (eventSignal == INIT && state.isPseudo && lastStateMachineEvent != null)
+                ? lastStateMachineEvent.withEventSignal(eventSignal)
+                : SIGNAL_EVENTS[eventSignal.ordinal()];
+        if (!tracingEnabled) {
+            state.stateHandler.handle(stateMachineEvent);
+            return;
+        }
+
+        logger.debug("State: {}, Event: {}", state.stateName, stateMachineEvent);
+        if (eventSignal == ENTRY || eventSignal == EXIT) {
+            StateActionEvent stateActionEvent = eventSignal == ENTRY ? new EntryEvent() : new ExitEvent();
+            stateActionEvent.begin();
+            state.stateHandler.handle(stateMachineEvent);
+            if (stateActionEvent.shouldCommit()) {
+                stateActionEvent.machine = machineId;
+                stateActionEvent.state = state.stateName;
+                stateActionEvent.commit();
+            }
+        } else {
+            state.stateHandler.handle(stateMachineEvent);
+        }
+    }
+
+    private IEventSignal currentEventSignal() {
+        return lastStateMachineEvent != null ? lastStateMachineEvent.getEventSignal() : INIT;
+    }
+}
@@ -33,6 +33,11 @@ public class StateMachineEvent {
         return Optional.ofNullable((T) properties.get(key)).orElse(defaultValue);
     }
 
+    // Shares the properties, without copying them.
+    StateMachineEvent withEventSignal(IEventSignal eventSignal) {
+        return new StateMachineEvent(eventSignal, properties);
+    }
+
     public Map<String, Object> getProperties() {
         return ImmutableMap.copyOf(properties);
     }
@@ -0,0 +1,74 @@
+package org.nting.statemachine;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// JDK Flight Recorder events of the state machine. They are disabled unless a recording enables them, e.g. with
+// -XX:StartFlightRecording, in which case an event costs only a few nanoseconds.
+final class StateMachineFlightEvents {
+
+    private static final String CATEGORY = "State Machine";
+
+    private StateMachineFlightEvents() {
+    }
+
+    @Name("org.nting.statemachine.Dispatch")
+    @Label("Dispatch")
+    @Category(CATEGORY)
+    @Description("Dispatch of an event, including the transitions caused by it")
+    @StackTrace(false)
+    static class DispatchEvent extends Event {
+        @Label("Machine")
+        String machine;
+        @Label("Signal")
+        String signal;
+        @Label("State")
+        String state;
+        @Label("Final State")
+        String finalState;
+        @Label("Depth")
+        @Description("Number of state handlers the event bubbled through")
+        int depth;
+    }
+
+    abstract static class StateActionEvent extends Event {
+        @Label("Machine")
+        String machine;
+        @Label("State")
+        String state;
+    }
+
+    @Name("org.nting.statemachine.Entry")
+    @Label("Entry")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class EntryEvent extends StateActionEvent {
+    }
+
+    @Name("org.nting.statemachine.Exit")
+    @Label("Exit")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class ExitEvent extends StateActionEvent {
+    }
+
+    @Name("org.nting.statemachine.Transition")
+    @Label("Transition")
+    @Category(CATEGORY)
+    @Description("Transition, including the exit, entry and initial actions")
+    @StackTrace(false)
+    static class TransitionEvent extends Event {
+        @Label("Machine")
+        String machine;
+        @Label("Signal")
+        String signal;
+        @Label("Source State")
+        String sourceState;
+        @Label("Target State")
+        String targetState;
+    }
+}
@@ -0,0 +1,157 @@
+package org.nting.statemachine;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import com.google.common.base.Preconditions;
+
+// Bounded pool of reusable state machines, or of the objects owning them. Released instances are reset and kept in a
+// small per-thread cache first, so a thread acquiring and releasing instances doesn't touch the shared queue. The
+// instances in the per-thread caches count against the capacity, and a thread which finds both its cache and the
+// shared queue empty takes the instances cached by other (e.g. idle or terminated) threads. An instance released to
+// a full pool is left to the garbage collector.
+public class StateMachinePool<T> {
+
+    public static final int DEFAULT_THREAD_LOCAL_CAPACITY = 4;
+
+    private final Supplier<T> factory;
+    private final Consumer<T> resetAction;
+    private final int capacity;
+    private final int threadLocalCapacity;
+    private final BlockingQueue<T> sharedInstances;
+    private final Set<LocalCache<T>> localCaches = ConcurrentHashMap.newKeySet();
+    private final ThreadLocal<LocalCache<T>> threadLocalInstances = ThreadLocal.withInitial(this::createLocalCache);
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    private final LongAdder createdCount = new LongAdder();
+    private final LongAdder reusedCount = new LongAdder();
+
+    public StateMachinePool(Supplier<T> factory, Consumer<T> resetAction, int capacity) {
+        this(factory, resetAction, capacity, DEFAULT_THREAD_LOCAL_CAPACITY);
+    }
+
+    public StateMachinePool(Supplier<T> factory, Consumer<T> resetAction, int capacity, int threadLocalCapacity) {
+        Preconditions.checkArgument(capacity > 0);
+        Preconditions.checkArgument(threadLocalCapacity >= 0);
+
+        this.factory = factory;
+        this.resetAction = resetAction;
+        this.capacity = capacity;
+        this.threadLocalCapacity = threadLocalCapacity;
+        sharedInstances = new ArrayBlockingQueue<>(capacity);
+    }
+
+    public static StateMachinePool<StateMachine> of(Supplier<StateMachine> factory, int capacity) {
+        return new StateMachinePool<>(factory, StateMachine::reset, capacity);
+    }
+
+    public T acquire() {
+        LocalCache<T> localCache = threadLocalInstances.get();
+        T instance = localCache.pollLast();
+        if (instance == null) {
+            instance = sharedInstances.poll();
+        }
+        if (instance == null) {
+            instance = steal(localCache);
+        }
+
+        if (instance != null) {
+            idleCount.decrementAndGet();
+            reusedCount.increment();
+            return instance;
+        }
+
+        createdCount.increment();
+        return factory.get();
+    }
+
+    // The instance must not be used by the caller after releasing it.
+    public void release(T instance) {
+        Preconditions.checkNotNull(instance);
+        resetAction.accept(instance);
+
+        if (idleCount.incrementAndGet() > capacity) {
+            idleCount.decrementAndGet();
+            return;
+        }
+
+        if (!threadLocalInstances.get().offerLast(instance, threadLocalCapacity)) {
+            sharedInstances.offer(instance);// fits, at most 'capacity' instances are idle
+        }
+    }
+
+    // Idle instances, in the shared queue and in the per-thread caches.
+    public int getIdleCount() {
+        return idleCount.get();
+    }
+
+    public long getCreatedCount() {
+        return createdCount.sum();
+    }
+
+    public long getReusedCount() {
+        return reusedCount.sum();
+    }
+
+    private LocalCache<T> createLocalCache() {
+        LocalCache<T> localCache = new LocalCache<>(Thread.currentThread());
+        localCaches.add(localCache);
+        return localCache;
+    }
+
+    private T steal(LocalCache<T> ownCache) {
+        for (LocalCache<T> localCache : localCaches) {
+            if (localCache == ownCache) {
+                continue;
+            }
+
+            T instance = localCache.pollFirst();
+            if (instance != null) {
+                return instance;
+            }
+            if (!localCache.isOwnerAlive()) {
+                localCaches.remove(localCache);// empty and no longer used
+            }
+        }
+        return null;
+    }
+
+    // Mostly used by its owner thread, the lock is only contended when an other thread steals from it.
+    private static class LocalCache<T> {
+        private final WeakReference<Thread> owner;
+        private final ArrayDeque<T> instances = new ArrayDeque<>();
+
+        private LocalCache(Thread owner) {
+            this.owner = new WeakReference<>(owner);
+        }
+
+        synchronized T pollLast() {
+            return instances.pollLast();
+        }
+
+        synchronized T pollFirst() {
+            return instances.pollFirst();
+        }
+
+        synchronized boolean offerLast(T instance, int capacity) {
+            if (instances.size() >= capacity) {
+                return false;
+            }
+            instances.addLast(instance);
+            return true;
+        }
+
+        boolean isOwnerAlive() {
+            Thread thread = owner.get();
+            return thread != null && thread.isAlive();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package org.nting.statemachine;
+
+import java.util.List;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+// Fixed-size ring buffer of the recent dispatches and transitions of a state machine. Recording doesn't allocate, so
+// it is always on. It is written by the thread which dispatches, dump() from an other thread is only a best effort.
+public class TransitionRecorder {
+
+    public enum Kind {
+        DISPATCH, TRANSITION
+    }
+
+    private final Kind[] kinds;
+    private final long[] timestamps;
+    private final IEventSignal[] eventSignals;
+    private final State[] sourceStates;
+    private final State[] targetStates;
+    private long count;
+
+    public TransitionRecorder(int capacity) {
+        Preconditions.checkArgument(capacity > 0);
+
+        kinds = new Kind[capacity];
+        timestamps = new long[capacity];
+        eventSignals = new IEventSignal[capacity];
+        sourceStates = new State[capacity];
+        targetStates = new State[capacity];
+    }
+
+    public int getCapacity() {
+        return kinds.length;
+    }
+
+    void recordDispatch(State state, IEventSignal eventSignal) {
+        record(Kind.DISPATCH, eventSignal, state, null);
+    }
+
+    void recordTransition(State sourceState, State targetState, IEventSignal eventSignal) {
+        record(Kind.TRANSITION, eventSignal, sourceState, targetState);
+    }
+
+    private void record(Kind kind, IEventSignal eventSignal, State sourceState, State targetState) {
+        int index = (int) (count % kinds.length);
+        kinds[index] = kind;
+        timestamps[index] = System.nanoTime();
+        eventSignals[index] = eventSignal;
+        sourceStates[index] = sourceState;
+        targetStates[index] = targetState;
+        count++;
+    }
+
+    public void clear() {
+        count = 0;
+    }
+
+    // Oldest first.
+    public List<Record> dump() {
+        long end = count;
+        long start = Math.max(0, end - kinds.length);
+        List<Record> records = Lists.newArrayListWithCapacity((int) (end - start));
+        for (long i = start; i < end; i++) {
+            int index = (int) (i % kinds.length);
+            records.add(new Record(kinds[index], timestamps[index], eventSignals[index], sourceStates[index],
+                    targetStates[index]));
+        }
+        return records;
+    }
+
+    public static class Record {
+        public final Kind kind;
+        public final long timestamp;// System.nanoTime()
+        public final IEventSignal eventSignal;
+        public final State sourceState;
+        public final State targetState;// null for DISPATCH
+
+        public Record(Kind kind, long timestamp, IEventSignal eventSignal, State sourceState, State targetState) {
+            this.kind = kind;
+            this.timestamp = timestamp;
+            this.eventSignal = eventSignal;
+            this.sourceState = sourceState;
+            this.targetState = targetState;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this).omitNullValues().add("kind", kind).add("timestamp", timestamp)
+                    .add("eventSignal", eventSignal).add("sourceState", stateNameOf(sourceState))
+                    .add("targetState", stateNameOf(targetState)).toString();
+        }
+
+        private static String stateNameOf(State state) {
+            return state != null ? state.stateName : null;
+        }
+    }
+}
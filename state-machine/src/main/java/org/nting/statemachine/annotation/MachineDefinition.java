@@ -0,0 +1,19 @@
+package org.nting.statemachine.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+// Marks the owner class of a state machine, whose definition (<Owner>Definition) and dispatcher (<Owner>Dispatcher)
+// are generated by the state-machine-processor. The states are declared by @MachineState, the actions and
+// transitions by @Entry, @Exit and @Transition on the methods of the owner.
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.SOURCE)
+public @interface MachineDefinition {
+
+    String TOP_STATE = "TopState";
+
+    // Initial sub state of the top state.
+    String initial();
+}
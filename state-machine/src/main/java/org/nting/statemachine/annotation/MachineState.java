@@ -0,0 +1,27 @@
+package org.nting.statemachine.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Repeatable;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.SOURCE)
+@Repeatable(MachineState.List.class)
+public @interface MachineState {
+
+    // A Java identifier, unique within the machine.
+    String name();
+
+    String parent() default MachineDefinition.TOP_STATE;
+
+    // Initial sub state, if it is a composite state.
+    String initial() default "";
+
+    @Target(ElementType.TYPE)
+    @Retention(RetentionPolicy.SOURCE)
+    @interface List {
+        MachineState[] value();
+    }
+}
@@ -0,0 +1,30 @@
+package org.nting.statemachine.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Repeatable;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+// Transition action, on a method without parameters or with a StateMachineEvent parameter. The signal is matched by
+// the toString() of the IEventSignal, i.e. the name of the enum constant. Without target it is an internal
+// transition: only the action is performed. Otherwise the states are exited up to the common ancestor of the source
+// and the target (the source itself is exited, even if it contains the target), then the action is performed, then
+// the states are entered down to the target, followed by its initial sub states.
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.SOURCE)
+@Repeatable(Transition.List.class)
+public @interface Transition {
+
+    String source();
+
+    String signal();
+
+    String target() default "";
+
+    @Target(ElementType.METHOD)
+    @Retention(RetentionPolicy.SOURCE)
+    @interface List {
+        Transition[] value();
+    }
+}
@@ -9,7 +9,11 @@ import static org.nting.statemachine.Calculator.CalculatorSignal.OFF;
 import static org.nting.statemachine.StateMachineSignal.ENTRY;
 import static org.nting.statemachine.StateMachineSignal.INIT;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.List;
+import java.util.stream.Stream;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
@@ -72,7 +76,48 @@ public class Calculator {
 
     public void dispatch(CalculatorCharacterSignal signal, Character character) {
         Preconditions.checkArgument(signal.isValidCharacter(character));
-        stateMachine.dispatch(new StateMachineEvent(signal, ImmutableMap.of(CHARACTER_KEY, character)));
+        stateMachine.dispatch(event(signal, character));
+    }
+
+    public static StateMachineEvent event(CalculatorCharacterSignal signal, Character character) {
+        return new StateMachineEvent(signal, ImmutableMap.of(CHARACTER_KEY, character));
+    }
+
+    public void reset() {
+        stateMachine.reset();
+    }
+
+    StateMachine getStateMachine() {
+        return stateMachine;
+    }
+
+    void write(DataOutput output) throws IOException {
+        output.writeUTF(operand1);
+        output.writeUTF(operand2);
+        output.writeBoolean(operation != null);
+        if (operation != null) {
+            output.writeChar(operation);
+        }
+        output.writeBoolean(result != null);
+        if (result != null) {
+            output.writeDouble(result);
+        }
+        stateMachine.writeConfiguration(output);
+    }
+
+    static Calculator read(DataInput input) throws IOException {
+        Calculator calculator = new Calculator();
+        calculator.operand1 = input.readUTF();
+        calculator.operand2 = input.readUTF();
+        calculator.operation = input.readBoolean() ? input.readChar() : null;
+        calculator.result = input.readBoolean() ? input.readDouble() : null;
+        calculator.stateMachine.readConfiguration(input, calculator::stateOf);
+        return calculator;
+    }
+
+    State stateOf(String stateName) {
+        return Stream.of(topState, stateOn, stateOff, stateOperand1, stateOperand2, stateOpEntered, stateResult)
+                .filter(state -> state.stateName.equals(stateName)).findFirst().orElse(null);
     }
 
     private State topState(StateMachineEvent stateMachineEvent) {
@@ -0,0 +1,171 @@
+package org.nting.statemachine;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.nting.statemachine.ChoiceStateTest.KeySignal.KEY_1;
+import static org.nting.statemachine.ChoiceStateTest.KeySignal.KEY_2;
+import static org.nting.statemachine.StateMachineSignal.INIT;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+public class ChoiceStateTest {
+
+    public enum KeySignal implements IEventSignal {
+        KEY_1, KEY_2
+    }
+
+    private static final EventField<Integer> COUNT = EventField.of("count", Integer.class, 0);
+    private static final EventField<String> MODE = EventField.of("mode", String.class);
+
+    private StateMachine stateMachine;
+
+    private State topState;
+    private State state1;
+    private State state2;
+    private State state21;
+    private State state22;
+    private ChoiceState choice1;
+    private ChoiceState choice2;// Without default target
+
+    @Before
+    public void setUp() {
+        topState = new State(this::topState, "TopState");
+        state1 = new State(this::state1, "State1");
+        state2 = new State(this::state2, "State2");
+        state21 = new State(event -> state2, "State21");
+        state22 = new State(event -> state2, "State22");
+
+        choice1 = new ChoiceState("Choice1", topState) //
+                .when(COUNT.is(count -> count < 0), state1) //
+                .when(MODE.is("second"::equals), state22) //
+                .when(COUNT.is(count -> count > 10), state22) //
+                .otherwise(state2);
+        choice2 = new ChoiceState("Choice2", state2) //
+                .when(COUNT.is(count -> count == 1), state21) //
+                .when(COUNT.is(count -> count == 2), state22);
+
+        stateMachine = new StateMachine(topState);
+    }
+
+    private State topState(StateMachineEvent stateMachineEvent) {
+        if (stateMachineEvent.getEventSignal() == INIT) {
+            stateMachine.transitionTo(choice1);
+        }
+
+        return null;
+    }
+
+    private State state1(StateMachineEvent stateMachineEvent) {
+        if (stateMachineEvent.getEventSignal() == KEY_1) {
+            stateMachine.transitionTo(choice1);
+            return null;
+        }
+
+        return topState;
+    }
+
+    private State state2(StateMachineEvent stateMachineEvent) {
+        if (stateMachineEvent.getEventSignal() == INIT) {
+            stateMachine.transitionTo(state21);
+            return null;
+        } else if (stateMachineEvent.getEventSignal() == KEY_1) {
+            stateMachine.transitionTo(choice1);
+            return null;
+        } else if (stateMachineEvent.getEventSignal() == KEY_2) {
+            stateMachine.transitionTo(choice2);
+            return null;
+        }
+
+        return topState;
+    }
+
+    @Test
+    public void testChoice() {
+        stateMachine.initialize();
+        assertEquals(state21, stateMachine.getState()); // Default values of the fields: otherwise + initial transition
+
+        stateMachine.dispatch(new StateMachineEvent(KEY_1, ImmutableMap.of("count", -1)));
+        assertEquals(state1, stateMachine.getState());
+
+        stateMachine.dispatch(new StateMachineEvent(KEY_1, ImmutableMap.of("count", 20)));
+        assertEquals(state22, stateMachine.getState());
+
+        stateMachine.dispatch(new StateMachineEvent(KEY_1, ImmutableMap.of("count", -5, "mode", "second")));
+        assertEquals(state1, stateMachine.getState()); // First matching guard wins
+
+        stateMachine.dispatch(new StateMachineEvent(KEY_1, ImmutableMap.of("mode", "second")));
+        assertEquals(state22, stateMachine.getState());
+
+        stateMachine.dispatch(new StateMachineEvent(KEY_2, ImmutableMap.of("count", 1)));
+        assertEquals(state21, stateMachine.getState());
+
+        assertArrayEquals(new long[] { 2, 1, 1 }, choice1.getGuardHitCounts());
+        assertEquals(1, choice1.getOtherwiseHitCount());
+        assertArrayEquals(new long[] { 1, 0 }, choice2.getGuardHitCounts());
+    }
+
+    @Test
+    public void testChoice_NoMatchingGuard() {
+        stateMachine.initialize();
+
+        try {
+            stateMachine.dispatch(new StateMachineEvent(KEY_2, ImmutableMap.of("count", 3)));
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(state21, stateMachine.getState()); // Failed before leaving the source state
+        }
+
+        stateMachine.dispatch(new StateMachineEvent(KEY_2, ImmutableMap.of("count", 2)));
+        assertEquals(state22, stateMachine.getState());
+    }
+
+    @Test
+    public void testChoice_FieldsReadLazily() {
+        // The mode isn't read (which would fail the cast) as the first guard matches
+        assertEquals(state1, choice1.select(new StateMachineEvent(KEY_1, ImmutableMap.of("count", -1, "mode", 42))));
+        assertEquals(state22, choice1.select(new StateMachineEvent(KEY_1, ImmutableMap.of("count", 11))));
+        assertArrayEquals(new long[] { 1, 0, 1 }, choice1.getGuardHitCounts());
+    }
+
+    @Test
+    public void testChoice_SharedByMachines() throws Exception {
+        ChoiceState sharedChoice = new ChoiceState("Shared", null) //
+                .when(COUNT.is(count -> count % 2 == 0), state21) //
+                .when(MODE.is("odd"::equals), state22);
+
+        List<Future<Boolean>> results = Lists.newArrayList();
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+        try {
+            for (int thread = 0; thread < 4; thread++) {
+                results.add(executorService.submit(() -> {
+                    for (int count = 0; count < 100_000; count++) {
+                        StateMachineEvent event = new StateMachineEvent(KEY_1,
+                                count % 2 == 0 ? ImmutableMap.of("count", count)
+                                        : ImmutableMap.of("count", count, "mode", "odd"));
+                        if (sharedChoice.select(event) != (count % 2 == 0 ? state21 : state22)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executorService.shutdown();
+        }
+        assertArrayEquals(new long[] { 200_000, 200_000 }, sharedChoice.getGuardHitCounts());
+    }
+}
@@ -0,0 +1,98 @@
+package org.nting.statemachine;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ColdStoreTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private ColdStore coldStore;
+
+    @Before
+    public void setUp() throws IOException {
+        coldStore = new ColdStore(temporaryFolder.newFile().toPath());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        coldStore.close();
+    }
+
+    @Test
+    public void testPutGetDelete() throws IOException {
+        coldStore.put(bytes("a"), bytes("first"));
+        coldStore.put(bytes("b"), new byte[0]);
+        coldStore.put(bytes("a"), bytes("second"));
+
+        assertArrayEquals(bytes("second"), coldStore.get(bytes("a")));
+        assertArrayEquals(new byte[0], coldStore.get(bytes("b")));
+        assertNull(coldStore.get(bytes("c")));
+        assertEquals(2, coldStore.getRecordCount());
+
+        assertTrue(coldStore.delete(bytes("a")));
+        assertFalse(coldStore.delete(bytes("a")));
+        assertNull(coldStore.get(bytes("a")));
+        assertEquals(1, coldStore.getRecordCount());
+    }
+
+    @Test
+    public void testSpaceReused() throws IOException {
+        for (int key = 0; key < 100; key++) {
+            coldStore.put(bytes("key" + key), new byte[100]);
+        }
+        long size = coldStore.getSize();
+
+        for (int cycle = 0; cycle < 100; cycle++) {
+            for (int key = 0; key < 100; key++) {
+                coldStore.delete(bytes("key" + key));
+                coldStore.put(bytes("key" + key), new byte[50 + cycle % 50]);
+            }
+        }
+        assertEquals(size, coldStore.getSize()); // The blocks of the same size class are reused
+        assertEquals(0, coldStore.getFreeBytes());
+
+        coldStore.put(bytes("key0"), new byte[1000]);
+        assertTrue(coldStore.getFreeBytes() > 0); // The smaller block is kept for an other record
+    }
+
+    @Test
+    public void testIndexGrowth() throws IOException {
+        for (int key = 0; key < 10_000; key++) {
+            coldStore.put(bytes("key" + key), bytes("value" + key));
+        }
+        for (int key = 0; key < 10_000; key += 2) {
+            coldStore.delete(bytes("key" + key));
+        }
+        for (int key = 10_000; key < 20_000; key++) {
+            coldStore.put(bytes("key" + key), bytes("value" + key));
+        }
+
+        assertEquals(15_000, coldStore.getRecordCount());
+        for (int key = 0; key < 20_000; key++) {
+            byte[] value = coldStore.get(bytes("key" + key));
+            if (key < 10_000 && key % 2 == 0) {
+                assertNull(value);
+            } else {
+                assertArrayEquals(bytes("value" + key), value);
+            }
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
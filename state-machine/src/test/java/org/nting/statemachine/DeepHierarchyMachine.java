@@ -0,0 +1,100 @@
+package org.nting.statemachine;
+
+import static org.nting.statemachine.DeepHierarchyMachine.DeepSignal.TICK;
+import static org.nting.statemachine.DeepHierarchyMachine.DeepSignal.TOGGLE;
+import static org.nting.statemachine.StateMachineSignal.INIT;
+
+import com.google.common.base.Preconditions;
+
+// Synthetic machine with two branches of nested states (A1 > A2 > ... > An and B1 > B2 > ... > Bn) under the top
+// state. TICK is handled by the innermost state, TOGGLE bubbles up to the outermost state of the branch and leads to
+// the other branch, exiting and entering every level.
+public class DeepHierarchyMachine {
+
+    public enum DeepSignal implements IEventSignal {
+        TOGGLE, TICK
+    }
+
+    private final State topState;
+    private final State[] branchA;
+    private final State[] branchB;
+
+    private final StateMachine stateMachine;
+
+    private long tickCount;
+
+    public DeepHierarchyMachine(int depth) {
+        Preconditions.checkArgument(depth > 0);
+
+        topState = new State(this::topState, "TopState");
+        branchA = createBranch("A", depth);
+        branchB = createBranch("B", depth);
+
+        stateMachine = new StateMachine(topState);
+        stateMachine.initialize();
+    }
+
+    public void dispatch(DeepSignal signal) {
+        stateMachine.dispatch(new StateMachineEvent(signal));
+    }
+
+    public long getTickCount() {
+        return tickCount;
+    }
+
+    public boolean isInBranchA() {
+        return stateMachine.getState() == branchA[branchA.length - 1];
+    }
+
+    StateMachine getStateMachine() {
+        return stateMachine;
+    }
+
+    State stateOf(String stateName) {
+        if (topState.stateName.equals(stateName)) {
+            return topState;
+        }
+        for (State[] branch : new State[][] { branchA, branchB }) {
+            for (State state : branch) {
+                if (state.stateName.equals(stateName)) {
+                    return state;
+                }
+            }
+        }
+        return null;
+    }
+
+    private State[] createBranch(String name, int depth) {
+        State[] branch = new State[depth];
+        for (int i = 0; i < depth; i++) {
+            int level = i;
+            branch[i] = new State(stateMachineEvent -> branchState(branch, level, stateMachineEvent),
+                    "State" + name + (i + 1));
+        }
+        return branch;
+    }
+
+    private State topState(StateMachineEvent stateMachineEvent) {
+        if (stateMachineEvent.getEventSignal() == INIT) {
+            stateMachine.transitionTo(branchA[0]);
+        }
+
+        return null;
+    }
+
+    private State branchState(State[] branch, int level, StateMachineEvent stateMachineEvent) {
+        boolean innermost = level == branch.length - 1;
+        if (stateMachineEvent.getEventSignal() == INIT && !innermost) {
+            stateMachine.transitionTo(branch[level + 1]);
+            return null;
+        } else if (stateMachineEvent.getEventSignal() == TICK && innermost) {
+            tickCount++;
+            return null;
+        } else if (stateMachineEvent.getEventSignal() == TOGGLE && level == 0) {
+            stateMachine.transitionTo(branch == branchA ? branchB[0] : branchA[0]);
+            return null;
+        }
+
+        return level == 0 ? topState : branch[level - 1];
+    }
+}
@@ -0,0 +1,131 @@
+package org.nting.statemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.nting.statemachine.Calculator.CalculatorCharacterSignal.NUMBER;
+import static org.nting.statemachine.Calculator.CalculatorCharacterSignal.OPERATION;
+import static org.nting.statemachine.Calculator.CalculatorSignal.CLEAR;
+import static org.nting.statemachine.Calculator.CalculatorSignal.EQUALS;
+import static org.nting.statemachine.EventQueueTest.PositionSignal.POSITION;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+public class EventQueueTest {
+
+    public enum PositionSignal implements IEventSignal {
+        POSITION
+    }
+
+    private final List<StateMachineEvent> dispatchedEvents = Lists.newArrayList();
+    private EventQueue eventQueue;
+
+    @Before
+    public void setUp() {
+        State topState = new State(stateMachineEvent -> {
+            if (stateMachineEvent.getEventSignal() == POSITION) {
+                dispatchedEvents.add(stateMachineEvent);
+            }
+            return null;
+        }, "TopState");
+        StateMachine stateMachine = new StateMachine(topState);
+        stateMachine.initialize();
+        eventQueue = new EventQueue(stateMachine);
+    }
+
+    @Test
+    public void testFifo() {
+        eventQueue.offer(position("a", 1));
+        eventQueue.offer(position("a", 2));
+        eventQueue.offer(position("b", 3));
+
+        assertEquals(3, eventQueue.dispatchAll());
+        assertEquals(ImmutableList.of(1, 2, 3), dispatchedValues());
+        assertFalse(eventQueue.dispatchNext());
+    }
+
+    @Test
+    public void testConflate() {
+        eventQueue.setPolicy(POSITION,
+                EventPolicy.conflate(EventPolicy.Priority.NORMAL, event -> event.getProperty("id")));
+
+        eventQueue.offer(position("a", 1));
+        eventQueue.offer(position("b", 2));
+        eventQueue.offer(position("a", 3));
+        eventQueue.offer(position("a", 4));
+        assertEquals(2, eventQueue.size());
+
+        eventQueue.dispatchAll();
+        assertEquals(ImmutableList.of(4, 2), dispatchedValues()); // The latest value keeps the first position
+        assertEquals(2, eventQueue.getConflatedCount(POSITION));
+        assertEquals(0, eventQueue.getDroppedCount(POSITION));
+
+        eventQueue.offer(position("a", 5));
+        eventQueue.dispatchAll();
+        assertEquals(ImmutableList.of(4, 2, 5), dispatchedValues());
+    }
+
+    @Test
+    public void testDropOldest() {
+        eventQueue.setPolicy(POSITION, EventPolicy.dropOldest(EventPolicy.Priority.NORMAL, 2));
+
+        for (int i = 1; i <= 5; i++) {
+            eventQueue.offer(position("a", i));
+        }
+        assertEquals(2, eventQueue.size());
+
+        eventQueue.dispatchAll();
+        assertEquals(ImmutableList.of(4, 5), dispatchedValues());
+        assertEquals(3, eventQueue.getDroppedCount(POSITION));
+        assertEquals(0, eventQueue.size());
+    }
+
+    @Test
+    public void testDropOldest_Burst() {
+        eventQueue.setPolicy(POSITION, EventPolicy.dropOldest(EventPolicy.Priority.NORMAL, 1));
+
+        for (int i = 1; i <= 1_000_000; i++) {
+            eventQueue.offer(position("a", i));
+        }
+        assertEquals(1, eventQueue.size());
+        assertTrue(eventQueue.getLaneLength(EventPolicy.Priority.NORMAL) <= 3); // Cancelled entries are compacted
+
+        assertEquals(1, eventQueue.dispatchAll());
+        assertEquals(ImmutableList.of(1_000_000), dispatchedValues());
+        assertEquals(0, eventQueue.getLaneLength(EventPolicy.Priority.NORMAL));
+    }
+
+    @Test
+    public void testPriority() {
+        Calculator calculator = new Calculator();
+        EventQueue calculatorQueue = new EventQueue(calculator.getStateMachine());
+        calculatorQueue.setPolicy(CLEAR, EventPolicy.fifo(EventPolicy.Priority.HIGH));
+
+        calculatorQueue.offer(Calculator.event(NUMBER, '1'));
+        calculatorQueue.offer(Calculator.event(OPERATION, '+'));
+        calculatorQueue.offer(Calculator.event(NUMBER, '2'));
+        calculatorQueue.offer(new StateMachineEvent(EQUALS));
+        calculatorQueue.offer(new StateMachineEvent(CLEAR)); // Jumps ahead of the backlog
+
+        calculatorQueue.dispatchNext();
+        assertEquals(4, calculatorQueue.size());
+
+        calculatorQueue.dispatchAll();
+        assertEquals(3.0, calculator.result, 0.0);
+    }
+
+    private StateMachineEvent position(String id, int value) {
+        return new StateMachineEvent(POSITION, ImmutableMap.of("id", id, "value", value));
+    }
+
+    private List<Object> dispatchedValues() {
+        return Lists.transform(dispatchedEvents, event -> event.getProperty("value"));
+    }
+}
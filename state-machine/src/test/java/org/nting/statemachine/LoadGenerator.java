@@ -0,0 +1,414 @@
+package org.nting.statemachine;
+
+import static org.nting.statemachine.Calculator.CalculatorCharacterSignal.NUMBER;
+import static org.nting.statemachine.Calculator.CalculatorCharacterSignal.OPERATION;
+import static org.nting.statemachine.Calculator.CalculatorSignal.EQUALS;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+// Drives calculators and deep hierarchy machines with random, valid event sequences from several producer threads at
+// a target rate, and reports the throughput and the dispatch latency percentiles.
+//
+// Every producer follows a fixed schedule. The corrected latency of a dispatch is measured from its scheduled time
+// instead of its actual start, so a stall also counts for the dispatches which should have been done meanwhile
+// (coordinated omission correction).
+//
+// Calculators are owned by one producer each and their results are checked after every EQUALS. Deep hierarchy
+// machines are shared by all producers (each dispatch holds the lock of the machine), their tick counts and
+// branches are checked at the end.
+//
+// With replication enabled, every machine is attached to a ReplicationPrimary, flushed every millisecond to a
+// follower in the same process, and the follower is checked to reach the final states at the end.
+//
+// Usage: LoadGenerator [calculators=100] [deepMachines=100] [depth=8] [producers=4] [rate=100000] [seconds=10]
+// [tracing=false] [replication=false]
+public class LoadGenerator {
+
+    private static final int MAX_REPORTED_VIOLATIONS = 10;
+
+    private final int calculatorCount;
+    private final int deepMachineCount;
+    private final int depth;
+    private final int producerCount;
+    private final long targetRate;// dispatches per second, all producers together
+    private final boolean tracingEnabled;
+    private boolean replicationEnabled;
+
+    public LoadGenerator(int calculatorCount, int deepMachineCount, int depth, int producerCount, long targetRate,
+            boolean tracingEnabled) {
+        Preconditions.checkArgument(calculatorCount >= producerCount || deepMachineCount > 0);
+        Preconditions.checkArgument(producerCount > 0 && targetRate > 0);
+        // Every producer dispatches at most once per nanosecond.
+        Preconditions.checkArgument(targetRate <= TimeUnit.SECONDS.toNanos(producerCount),
+                "Target rate is too high for %s producers: %s", producerCount, targetRate);
+
+        this.calculatorCount = calculatorCount;
+        this.deepMachineCount = deepMachineCount;
+        this.depth = depth;
+        this.producerCount = producerCount;
+        this.targetRate = targetRate;
+        this.tracingEnabled = tracingEnabled;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> arguments = Maps.newHashMap();
+        for (String arg : args) {
+            List<String> keyValue = Splitter.on('=').limit(2).splitToList(arg);
+            Preconditions.checkArgument(keyValue.size() == 2, "Invalid argument: %s", arg);
+            arguments.put(keyValue.get(0), keyValue.get(1));
+        }
+
+        LoadGenerator loadGenerator = new LoadGenerator(
+                Integer.parseInt(arguments.getOrDefault("calculators", "100")),
+                Integer.parseInt(arguments.getOrDefault("deepMachines", "100")),
+                Integer.parseInt(arguments.getOrDefault("depth", "8")),
+                Integer.parseInt(arguments.getOrDefault("producers", "4")),
+                Long.parseLong(arguments.getOrDefault("rate", "100000")),
+                Boolean.parseBoolean(arguments.getOrDefault("tracing", "false")));
+        loadGenerator.setReplicationEnabled(Boolean.parseBoolean(arguments.getOrDefault("replication", "false")));
+        System.out.println(loadGenerator.run(TimeUnit.SECONDS.toMillis(Long.parseLong(
+                arguments.getOrDefault("seconds", "10")))));
+    }
+
+    public void setReplicationEnabled(boolean replicationEnabled) {
+        this.replicationEnabled = replicationEnabled;
+    }
+
+    public Report run(long durationMillis) throws InterruptedException {
+        List<DeepMachineDriver> deepMachineDrivers = Lists.newArrayList();
+        for (int i = 0; i < deepMachineCount; i++) {
+            deepMachineDrivers.add(new DeepMachineDriver(new DeepHierarchyMachine(depth)));
+        }
+
+        List<Producer> producers = Lists.newArrayList();
+        for (int i = 0; i < producerCount; i++) {
+            producers.add(new Producer(i, deepMachineDrivers));
+        }
+        for (int i = 0; i < calculatorCount; i++) {
+            producers.get(i % producerCount).calculatorDrivers.add(new CalculatorDriver(new Calculator()));
+        }
+        Replication replication = replicationEnabled ? new Replication(producers, deepMachineDrivers) : null;
+
+        long intervalNanos = TimeUnit.SECONDS.toNanos(producerCount) / targetRate;
+        long startTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10);
+        long endTime = startTime + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        List<Thread> threads = Lists.newArrayList();
+        for (Producer producer : producers) {
+            // Producers are staggered evenly within an interval.
+            long firstScheduledTime = startTime + intervalNanos * producer.index / producerCount;
+            Thread thread = new Thread(() -> producer.run(firstScheduledTime, intervalNanos, endTime),
+                    "load-producer-" + producer.index);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsedNanos = System.nanoTime() - startTime;
+
+        Report report = new Report(elapsedNanos);
+        for (Producer producer : producers) {
+            report.correctedLatencies.add(producer.correctedLatencies);
+            report.uncorrectedLatencies.add(producer.uncorrectedLatencies);
+            producer.violations.forEach(report::addViolation);
+        }
+        for (DeepMachineDriver deepMachineDriver : deepMachineDrivers) {
+            deepMachineDriver.checkInvariants(report);
+        }
+        if (replication != null) {
+            replication.stop(report);
+        }
+        return report;
+    }
+
+    // Replicates every machine to a follower in the same process.
+    private class Replication {
+        private final Map<String, StateMachine> primaryMachines = Maps.newHashMap();
+        private final Map<String, Supplier<ReplicationFollower.Replica>> replicaFactories = Maps.newHashMap();
+        private final LoopbackReplicationTransport transport = new LoopbackReplicationTransport();
+        private final ReplicationPrimary primary = new ReplicationPrimary(transport);
+        private final ReplicationFollower follower = new ReplicationFollower(transport,
+                key -> replicaFactories.get(key).get());
+        private final ExecutorService followerExecutor = Executors.newSingleThreadExecutor();
+        private final ScheduledExecutorService flushExecutor = Executors.newSingleThreadScheduledExecutor();
+        private final Future<?> following;
+
+        private Replication(List<Producer> producers, List<DeepMachineDriver> deepMachineDrivers) {
+            for (Producer producer : producers) {
+                for (CalculatorDriver calculatorDriver : producer.calculatorDrivers) {
+                    attach("calculator" + primaryMachines.size(), calculatorDriver.calculator.getStateMachine(), () -> {
+                        Calculator calculator = new Calculator();
+                        return new ReplicationFollower.Replica(calculator.getStateMachine(), calculator::stateOf);
+                    });
+                }
+            }
+            for (DeepMachineDriver deepMachineDriver : deepMachineDrivers) {
+                attach("deepMachine" + primaryMachines.size(), deepMachineDriver.deepHierarchyMachine.getStateMachine(),
+                        () -> {
+                            DeepHierarchyMachine deepHierarchyMachine = new DeepHierarchyMachine(depth);
+                            return new ReplicationFollower.Replica(deepHierarchyMachine.getStateMachine(),
+                                    deepHierarchyMachine::stateOf);
+                        });
+            }
+
+            following = follower.start(followerExecutor);
+            primary.scheduleFlush(flushExecutor, 1, TimeUnit.MILLISECONDS);
+        }
+
+        private void attach(String key, StateMachine stateMachine, Supplier<ReplicationFollower.Replica> factory) {
+            primaryMachines.put(key, stateMachine);
+            replicaFactories.put(key, factory);
+            primary.attach(key, stateMachine);
+        }
+
+        // Waits for the follower to apply every transition, then checks its states.
+        private void stop(Report report) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (follower.getAppliedCount() < primary.getRecordedCount() && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            flushExecutor.shutdownNow();
+            transport.close();
+            try {
+                following.get(10, TimeUnit.SECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                report.addViolation("Follower failed: " + e);
+            }
+            followerExecutor.shutdown();
+
+            report.replicatedCount = follower.getAppliedCount();
+            if (follower.getAppliedCount() != primary.getRecordedCount()) {
+                report.addViolation("Follower applied " + follower.getAppliedCount() + " transitions of "
+                        + primary.getRecordedCount());
+            }
+            primaryMachines.forEach((key, stateMachine) -> {
+                StateMachine replica = follower.getStateMachine(key);
+                if (replica == null || !replica.getState().stateName.equals(stateMachine.getState().stateName)) {
+                    report.addViolation("Replica of " + key + " is in " + (replica != null ? replica.getState() : null)
+                            + ", expected: " + stateMachine.getState());
+                }
+            });
+        }
+    }
+
+    private class Producer {
+        private final int index;
+        private final Random random;
+        private final List<DeepMachineDriver> deepMachineDrivers;
+        private final List<CalculatorDriver> calculatorDrivers = Lists.newArrayList();
+        private final LatencyHistogram correctedLatencies = new LatencyHistogram();
+        private final LatencyHistogram uncorrectedLatencies = new LatencyHistogram();
+        private final List<String> violations = Lists.newArrayList();
+
+        private Producer(int index, List<DeepMachineDriver> deepMachineDrivers) {
+            this.index = index;
+            this.deepMachineDrivers = deepMachineDrivers;
+            random = new Random(index);
+        }
+
+        private void run(long firstScheduledTime, long intervalNanos, long endTime) {
+            calculatorDrivers.forEach(calculatorDriver -> calculatorDriver.setTracingEnabled(tracingEnabled));
+            int targetCount = calculatorDrivers.size() + deepMachineDrivers.size();
+
+            for (long scheduledTime = firstScheduledTime; scheduledTime < endTime; scheduledTime += intervalNanos) {
+                waitUntil(scheduledTime);
+
+                long dispatchStart = System.nanoTime();
+                int target = random.nextInt(targetCount);
+                if (target < calculatorDrivers.size()) {
+                    calculatorDrivers.get(target).dispatchNext(random, violations);
+                } else {
+                    deepMachineDrivers.get(target - calculatorDrivers.size()).dispatchNext(random);
+                }
+                long dispatchEnd = System.nanoTime();
+
+                correctedLatencies.record(dispatchEnd - scheduledTime);
+                uncorrectedLatencies.record(dispatchEnd - dispatchStart);
+            }
+        }
+
+        private void waitUntil(long time) {
+            long remaining;
+            while ((remaining = time - System.nanoTime()) > 0) {
+                if (remaining > TimeUnit.MICROSECONDS.toNanos(100)) {
+                    LockSupport.parkNanos(remaining - TimeUnit.MICROSECONDS.toNanos(50));
+                }
+            }
+        }
+    }
+
+    // Feeds "operand1 operation operand2 EQUALS" sequences, one event per dispatch.
+    private static class CalculatorDriver {
+        private final Calculator calculator;
+        private final Deque<Runnable> pendingDispatches = new ArrayDeque<>();
+        private Double expectedResult;
+
+        private CalculatorDriver(Calculator calculator) {
+            this.calculator = calculator;
+        }
+
+        private void setTracingEnabled(boolean tracingEnabled) {
+            calculator.getStateMachine().setTracingEnabled(tracingEnabled);
+        }
+
+        private void dispatchNext(Random random, List<String> violations) {
+            if (pendingDispatches.isEmpty()) {
+                prepareSequence(random);
+            }
+
+            pendingDispatches.pollFirst().run();
+
+            if (pendingDispatches.isEmpty() && !Objects.equals(expectedResult, calculator.result)) {
+                violations.add("Calculator result: " + calculator.result + ", expected: " + expectedResult);
+            }
+        }
+
+        private void prepareSequence(Random random) {
+            String operand1 = addOperand(random);
+            char operation = "+-*/".charAt(random.nextInt(4));
+            pendingDispatches.add(() -> calculator.dispatch(OPERATION, operation));
+            String operand2 = addOperand(random);
+            pendingDispatches.add(() -> calculator.dispatch(EQUALS));
+
+            expectedResult = calculate(Double.parseDouble(operand1), operation, Double.parseDouble(operand2));
+        }
+
+        private String addOperand(Random random) {
+            StringBuilder operand = new StringBuilder();
+            int length = 1 + random.nextInt(3);
+            for (int i = 0; i < length; i++) {
+                char digit = (char) ('0' + random.nextInt(10));
+                operand.append(digit);
+                pendingDispatches.add(() -> calculator.dispatch(NUMBER, digit));
+            }
+            return operand.toString();
+        }
+
+        private static double calculate(double operand1, char operation, double operand2) {
+            switch (operation) {
+            case '+':
+                return operand1 + operand2;
+            case '-':
+                return operand1 - operand2;
+            case '*':
+                return operand1 * operand2;
+            default:
+                return operand1 / operand2;
+            }
+        }
+    }
+
+    private class DeepMachineDriver {
+        private final DeepHierarchyMachine deepHierarchyMachine;
+        private long tickCount;
+        private long toggleCount;
+
+        private DeepMachineDriver(DeepHierarchyMachine deepHierarchyMachine) {
+            this.deepHierarchyMachine = deepHierarchyMachine;
+            deepHierarchyMachine.getStateMachine().setTracingEnabled(tracingEnabled);
+        }
+
+        private synchronized void dispatchNext(Random random) {
+            if (random.nextInt(4) == 0) {
+                toggleCount++;
+                deepHierarchyMachine.dispatch(DeepHierarchyMachine.DeepSignal.TOGGLE);
+            } else {
+                tickCount++;
+                deepHierarchyMachine.dispatch(DeepHierarchyMachine.DeepSignal.TICK);
+            }
+        }
+
+        private synchronized void checkInvariants(Report report) {
+            if (deepHierarchyMachine.getTickCount() != tickCount) {
+                report.addViolation("Deep machine ticks: " + deepHierarchyMachine.getTickCount() + ", expected: "
+                        + tickCount);
+            }
+            if (deepHierarchyMachine.isInBranchA() != (toggleCount % 2 == 0)) {
+                report.addViolation("Deep machine is in the wrong branch after " + toggleCount + " toggles");
+            }
+        }
+    }
+
+    public static class Report {
+        public final long elapsedNanos;
+        public final LatencyHistogram correctedLatencies = new LatencyHistogram();
+        public final LatencyHistogram uncorrectedLatencies = new LatencyHistogram();
+        private final List<String> violations = Lists.newArrayList();
+        private long violationCount;
+        private long replicatedCount = -1;// transitions applied by the follower, -1 without replication
+
+        public Report(long elapsedNanos) {
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public long getDispatchCount() {
+            return correctedLatencies.getTotalCount();
+        }
+
+        public double getThroughput() {
+            return getDispatchCount() * 1e9 / elapsedNanos;
+        }
+
+        public long getReplicatedCount() {
+            return replicatedCount;
+        }
+
+        public long getViolationCount() {
+            return violationCount;
+        }
+
+        public List<String> getViolations() {
+            return Collections.unmodifiableList(violations);
+        }
+
+        private void addViolation(String violation) {
+            violationCount++;
+            if (violations.size() < MAX_REPORTED_VIOLATIONS) {
+                violations.add(violation);
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("Dispatches: %d in %.2f s, throughput: %.0f/s%n", getDispatchCount(),
+                    elapsedNanos / 1e9, getThroughput()));
+            sb.append(String.format("%-12s %10s %10s %10s %10s  (microseconds)%n", "", "p50", "p99", "p99.9",
+                    "max"));
+            appendLatencies(sb, "corrected", correctedLatencies);
+            appendLatencies(sb, "uncorrected", uncorrectedLatencies);
+            if (replicatedCount >= 0) {
+                sb.append(String.format("Replicated transitions: %d%n", replicatedCount));
+            }
+            sb.append(String.format("Invariant violations: %d%n", violationCount));
+            violations.forEach(violation -> sb.append("  ").append(violation).append(System.lineSeparator()));
+            return sb.toString();
+        }
+
+        private static void appendLatencies(StringBuilder sb, String name, LatencyHistogram latencies) {
+            sb.append(String.format("%-12s %10.1f %10.1f %10.1f %10.1f%n", name,
+                    latencies.getValueAtPercentile(50) / 1e3, latencies.getValueAtPercentile(99) / 1e3,
+                    latencies.getValueAtPercentile(99.9) / 1e3, latencies.getMaxValue() / 1e3));
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.nting.statemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LoadGeneratorTest {
+
+    @Test
+    public void testLatencyHistogram() {
+        LatencyHistogram latencyHistogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            latencyHistogram.record(i * 1000L);
+        }
+        LatencyHistogram other = new LatencyHistogram();
+        other.record(5_000_000);
+        latencyHistogram.add(other);
+
+        assertEquals(1001, latencyHistogram.getTotalCount());
+        assertEquals(5_000_000, latencyHistogram.getMaxValue());
+        assertEquals(500_000, latencyHistogram.getValueAtPercentile(50), 500_000 / 32);
+        assertEquals(990_000, latencyHistogram.getValueAtPercentile(99), 990_000 / 32);
+        assertEquals(5_000_000, latencyHistogram.getValueAtPercentile(100));
+        assertEquals(10, new LatencyHistogram() {
+            {
+                record(10);
+            }
+        }.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void testShortRun() throws InterruptedException {
+        LoadGenerator loadGenerator = new LoadGenerator(8, 8, 6, 2, 20_000, false);
+
+        LoadGenerator.Report report = loadGenerator.run(300);
+
+        assertTrue(report.getDispatchCount() > 1000);
+        assertEquals(0, report.getViolationCount());
+        assertTrue(report.correctedLatencies.getValueAtPercentile(50) <= report.correctedLatencies.getMaxValue());
+        assertTrue(report.toString().contains("p99.9"));
+    }
+
+    @Test
+    public void testShortRun_Replication() throws InterruptedException {
+        LoadGenerator loadGenerator = new LoadGenerator(8, 8, 6, 2, 20_000, false);
+        loadGenerator.setReplicationEnabled(true);
+
+        LoadGenerator.Report report = loadGenerator.run(300);
+
+        assertEquals(report.getViolations().toString(), 0, report.getViolationCount());
+        assertTrue(report.getReplicatedCount() > 1000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTargetRateTooHigh() {
+        new LoadGenerator(8, 0, 6, 2, 2_000_000_001L, false); // Would schedule the dispatches 0 ns apart
+    }
+}
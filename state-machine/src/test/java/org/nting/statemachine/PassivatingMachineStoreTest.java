@@ -0,0 +1,204 @@
+package org.nting.statemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.nting.statemachine.Calculator.CalculatorCharacterSignal.NUMBER;
+import static org.nting.statemachine.Calculator.CalculatorCharacterSignal.OPERATION;
+import static org.nting.statemachine.Calculator.CalculatorSignal.EQUALS;
+import static org.nting.statemachine.Calculator.CalculatorSignal.OFF;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.Lists;
+
+public class PassivatingMachineStoreTest {
+
+    private static final MachineCodec<Calculator> CALCULATOR_CODEC = new MachineCodec<Calculator>() {
+        @Override
+        public void write(Calculator calculator, DataOutput output) throws IOException {
+            calculator.write(output);
+        }
+
+        @Override
+        public Calculator read(DataInput input) throws IOException {
+            return Calculator.read(input);
+        }
+    };
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private ColdStore coldStore;
+
+    @Before
+    public void setUp() throws IOException {
+        coldStore = new ColdStore(temporaryFolder.newFile().toPath());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        coldStore.close();
+    }
+
+    @Test
+    public void testPassivationFailure() {
+        MachineCodec<Calculator> failingCodec = new MachineCodec<Calculator>() {
+            @Override
+            public void write(Calculator calculator, DataOutput output) throws IOException {
+                if (calculator.getStateMachine().getState().stateName.equals("StateOff")) {
+                    throw new IOException("No space left on device");
+                }
+                calculator.write(output);
+            }
+
+            @Override
+            public Calculator read(DataInput input) throws IOException {
+                return Calculator.read(input);
+            }
+        };
+        PassivatingMachineStore<String, Calculator> store = new PassivatingMachineStore<>(key -> new Calculator(),
+                failingCodec, coldStore, 2, 1, TimeUnit.HOURS);
+
+        store.execute("a", calculator -> calculator.dispatch(OFF));
+        store.execute("b", calculator -> calculator.dispatch(NUMBER, '1'));
+        store.execute("c", calculator -> calculator.dispatch(NUMBER, '2'));// evicts "b" instead of "a"
+
+        assertTrue(store.isInMemory("a"));
+        assertFalse(store.isInMemory("b"));
+        assertEquals(1, store.getPassivationFailureCount());
+
+        PassivatingMachineStore<String, Calculator> idleStore = new PassivatingMachineStore<>(
+                key -> new Calculator(), failingCodec, coldStore, 10, 0, TimeUnit.NANOSECONDS);
+        for (String key : Lists.newArrayList("d", "e", "f")) {
+            idleStore.execute(key, calculator -> {
+                if (key.equals("e")) {
+                    calculator.dispatch(OFF);
+                }
+            });
+        }
+        idleStore.passivateIdle();
+
+        assertEquals(2, idleStore.getPassivationCount());
+        assertTrue(idleStore.isInMemory("e"));
+        assertEquals(1, idleStore.getInMemoryCount());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedPassivation() {
+        PassivatingMachineStore<String, Calculator> store = new PassivatingMachineStore<>(key -> new Calculator(),
+                CALCULATOR_CODEC, coldStore, 2, 1, TimeUnit.HOURS);
+
+        store.execute("a", calculator -> {
+            calculator.dispatch(NUMBER, '1');
+            calculator.dispatch(NUMBER, '5');
+            calculator.dispatch(OPERATION, '+');
+        });
+        store.execute("b", calculator -> calculator.dispatch(OFF));
+        store.execute("c", calculator -> calculator.dispatch(NUMBER, '3'));
+
+        assertFalse(store.isInMemory("a")); // Least recently used
+        assertTrue(store.isInMemory("b"));
+        assertEquals(2, store.getInMemoryCount());
+        assertEquals(1, store.getPassivationCount());
+
+        store.execute("a", calculator -> {
+            assertEquals("StateOpEntered", calculator.getStateMachine().getState().stateName);
+            calculator.dispatch(NUMBER, '2');
+            calculator.dispatch(NUMBER, '7');
+            calculator.dispatch(EQUALS);
+            assertEquals(42.0, calculator.result, 0.0);
+        });
+        assertEquals(1, store.getRehydrationCount());
+        assertEquals(0, store.getHitCount());
+        assertEquals(4, store.getMissCount());
+        assertTrue(store.getMaxRehydrationNanos() > 0);
+    }
+
+    @Test
+    public void testIdlePassivation() {
+        PassivatingMachineStore<String, Calculator> store = new PassivatingMachineStore<>(key -> new Calculator(),
+                CALCULATOR_CODEC, coldStore, 100, 0, TimeUnit.MILLISECONDS);
+
+        store.execute("a", calculator -> calculator.dispatch(OFF));
+        store.execute("a", calculator -> assertNull(calculator.result));
+        assertEquals(1, store.getHitCount());
+
+        store.passivateIdle();
+        assertEquals(0, store.getInMemoryCount());
+
+        store.execute("a", calculator -> {
+            assertEquals("StateOff", calculator.getStateMachine().getState().stateName);
+            calculator.dispatch(NUMBER, '1'); // Still off
+            assertEquals("StateOff", calculator.getStateMachine().getState().stateName);
+        });
+        assertTrue(coldStore.getSize() > 0);
+    }
+
+    @Test
+    public void testPassivationCycles() {
+        PassivatingMachineStore<Integer, Calculator> store = new PassivatingMachineStore<>(key -> new Calculator(),
+                CALCULATOR_CODEC, coldStore, 10, 0, TimeUnit.MILLISECONDS);
+
+        long size = 0;
+        for (int cycle = 0; cycle < 50; cycle++) {
+            for (int key = 0; key < 100; key++) {
+                store.execute(key, calculator -> assertNull(calculator.result)); // Same record size every cycle
+            }
+            store.passivateIdle();
+            assertEquals(0, store.getInMemoryCount());
+            assertEquals(100, coldStore.getRecordCount());
+            if (cycle == 0) {
+                size = coldStore.getSize();
+            }
+        }
+
+        assertEquals(size, coldStore.getSize()); // Reactivated records are deleted, their space is reused
+        store.execute(7,
+                calculator -> assertEquals("StateOperand1", calculator.getStateMachine().getState().stateName));
+        assertEquals(99, coldStore.getRecordCount());
+    }
+
+    @Test
+    public void testConcurrentExecute() throws Exception {
+        PassivatingMachineStore<Integer, Calculator> store = new PassivatingMachineStore<>(key -> new Calculator(),
+                CALCULATOR_CODEC, coldStore, 1, 1, TimeUnit.HOURS);
+        AtomicInteger failures = new AtomicInteger();
+
+        List<CompletableFuture<Void>> futures = Lists.newArrayList();
+        for (int thread = 0; thread < 4; thread++) {
+            futures.add(CompletableFuture.runAsync(() -> {
+                for (int i = 0; i < 100; i++) {
+                    store.execute(i % 3, calculator -> {
+                        calculator.getStateMachine().setTracingEnabled(false);
+                        calculator.dispatch(NUMBER, '6');
+                        calculator.dispatch(OPERATION, '*');
+                        calculator.dispatch(NUMBER, '7');
+                        calculator.dispatch(EQUALS);
+                        if (calculator.result == null || calculator.result != 42.0) {
+                            failures.incrementAndGet();
+                        }
+                    });
+                }
+            }));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+
+        assertEquals(0, failures.get());
+        assertTrue(store.getRehydrationCount() > 0);
+        assertEquals(400, store.getHitCount() + store.getMissCount());
+    }
+}
@@ -0,0 +1,122 @@
+package org.nting.statemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.nting.statemachine.Calculator.CalculatorCharacterSignal.NUMBER;
+import static org.nting.statemachine.Calculator.CalculatorCharacterSignal.OPERATION;
+import static org.nting.statemachine.Calculator.CalculatorSignal.EQUALS;
+import static org.nting.statemachine.Calculator.CalculatorSignal.OFF;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+public class PopulationIndexTest {
+
+    @Test
+    public void testCountsAndMembers() {
+        PopulationIndex<Integer> populationIndex = new PopulationIndex<>(true);
+        List<Calculator> calculators = Lists.newArrayList();
+        List<Subscription> subscriptions = Lists.newArrayList();
+        for (int key = 0; key < 5; key++) {
+            Calculator calculator = new Calculator();
+            calculators.add(calculator);
+            subscriptions.add(populationIndex.register(key, calculator.getStateMachine()));
+        }
+        assertEquals(5, populationIndex.count("StateOperand1"));
+
+        calculators.get(1).dispatch(OFF);
+        calculators.get(3).dispatch(OFF);
+        calculators.get(4).dispatch(NUMBER, '1');
+        calculators.get(4).dispatch(OPERATION, '+');
+
+        assertEquals(ImmutableMap.of("StateOperand1", 2L, "StateOff", 2L, "StateOpEntered", 1L),
+                populationIndex.counts());
+        assertEquals(ImmutableSet.of(1, 3), populationIndex.members("StateOff"));
+        assertEquals(0, populationIndex.count("StateResult"));
+
+        subscriptions.get(3).unsubscribe();
+        subscriptions.get(3).unsubscribe();
+        calculators.get(3).dispatch(NUMBER, '1'); // No longer tracked
+        assertEquals(ImmutableSet.of(1), populationIndex.members("StateOff"));
+        assertEquals(4, populationIndex.counts().values().stream().mapToLong(Long::longValue).sum());
+    }
+
+    @Test
+    public void testReset() {
+        PopulationIndex<Integer> populationIndex = new PopulationIndex<>(true);
+        StateMachinePool<Calculator> pool = new StateMachinePool<>(Calculator::new, Calculator::reset, 1);
+
+        for (int key = 0; key < 3; key++) {
+            Calculator calculator = pool.acquire();
+            populationIndex.register(key, calculator.getStateMachine());
+            calculator.dispatch(OFF);
+            assertEquals(ImmutableSet.of(key), populationIndex.members("StateOff"));
+            pool.release(calculator); // Reset, removed from the index
+        }
+        assertEquals(0, populationIndex.count("StateOff"));
+        assertEquals(0, populationIndex.count("StateOperand1"));
+
+        Calculator calculator = pool.acquire();
+        calculator.dispatch(NUMBER, '1'); // No longer tracked
+        assertEquals(ImmutableMap.of("StateOperand1", 0L, "StateOff", 0L), populationIndex.counts());
+    }
+
+    @Test
+    public void testRegisterAgain() {
+        PopulationIndex<Integer> populationIndex = new PopulationIndex<>(true);
+        Calculator calculator = new Calculator();
+        populationIndex.register(1, calculator.getStateMachine());
+        calculator.dispatch(OFF);
+
+        populationIndex.register(1, calculator.getStateMachine()); // Replaces the registration
+        assertEquals(1, populationIndex.count("StateOff"));
+
+        Calculator replacement = new Calculator();
+        populationIndex.register(1, replacement.getStateMachine());
+        calculator.dispatch(NUMBER, '1'); // The replaced machine is no longer tracked
+        assertEquals(ImmutableMap.of("StateOperand1", 1L, "StateOff", 0L), populationIndex.counts());
+        assertEquals(ImmutableSet.of(1), populationIndex.members("StateOperand1"));
+        // Nothing is left on the replaced machine
+        assertEquals(0, calculator.getStateMachine().getSubscriberCount());
+        assertEquals(0, calculator.getStateMachine().getResetListenerCount());
+        assertEquals(1, replacement.getStateMachine().getSubscriberCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMembersNotTracked() {
+        new PopulationIndex<Integer>(false).members("StateOff");
+    }
+
+    @Test
+    public void testConcurrentDispatch() throws Exception {
+        PopulationIndex<String> populationIndex = new PopulationIndex<>(false);
+        List<CompletableFuture<Void>> futures = Lists.newArrayList();
+        for (int thread = 0; thread < 4; thread++) {
+            String prefix = "t" + thread + "-";
+            futures.add(CompletableFuture.runAsync(() -> {
+                for (int i = 0; i < 250; i++) {
+                    Calculator calculator = new Calculator();
+                    calculator.getStateMachine().setTracingEnabled(false);
+                    populationIndex.register(prefix + i, calculator.getStateMachine());
+                    calculator.dispatch(NUMBER, '1');
+                    calculator.dispatch(OPERATION, '+');
+                    if (i % 5 != 0) {
+                        calculator.dispatch(NUMBER, '1');
+                        calculator.dispatch(EQUALS);
+                    }
+                    populationIndex.count("StateResult"); // Queried while dispatching
+                }
+            }));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+
+        assertEquals(800, populationIndex.count("StateResult"));
+        assertEquals(200, populationIndex.count("StateOpEntered"));
+        assertEquals(0, populationIndex.count("StateOperand1"));
+    }
+}
@@ -0,0 +1,94 @@
+package org.nting.statemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.nting.statemachine.Calculator.CalculatorCharacterSignal.NUMBER;
+import static org.nting.statemachine.Calculator.CalculatorCharacterSignal.OPERATION;
+import static org.nting.statemachine.Calculator.CalculatorSignal.EQUALS;
+import static org.nting.statemachine.Calculator.CalculatorSignal.OFF;
+import static org.nting.statemachine.StateMachineSignal.INIT;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ReplayEngineTest {
+
+    private static final int KEY_COUNT = 100;
+
+    private final ForkJoinPool forkJoinPool = new ForkJoinPool(4);
+
+    @After
+    public void tearDown() {
+        forkJoinPool.shutdown();
+    }
+
+    @Test
+    public void testReplay() {
+        ReplayEngine<Integer> replayEngine = new ReplayEngine<>(forkJoinPool, 7);
+
+        Map<Integer, String> finalStates = replayEngine.replay(events(), key -> new Calculator().getStateMachine());
+
+        assertEquals(KEY_COUNT, finalStates.size());
+        for (int key = 0; key < KEY_COUNT; key++) {
+            assertEquals(key % 10 == 0 ? "StateOff" : "StateResult", finalStates.get(key));
+        }
+    }
+
+    @Test
+    public void testCompare() {
+        ReplayEngine<Integer> replayEngine = new ReplayEngine<>(forkJoinPool, 7);
+
+        Map<Integer, ReplayEngine.Divergence> divergences = replayEngine.compare(events(),
+                key -> new Calculator().getStateMachine(), key -> key < 50 ? new Calculator().getStateMachine()
+                        : stuckMachine());
+
+        assertEquals(KEY_COUNT, divergences.size());
+        assertFalse(divergences.get(10).isDivergent());
+        assertEquals("StateOff", divergences.get(10).finalStateB);
+
+        ReplayEngine.Divergence divergence = divergences.get(51);
+        assertTrue(divergence.isDivergent());
+        assertEquals(2, divergence.firstDivergentEvent); // After the OPERATION event
+        assertEquals("StateResult", divergence.finalStateA);
+        assertEquals("StateOperand1", divergence.finalStateB);
+        assertEquals(4, divergence.eventCount);
+    }
+
+    // Events are generated lazily, round robin over the keys, as they would be read from a recording.
+    private Iterator<KeyedEvent<Integer>> events() {
+        return IntStream.range(0, 4 * KEY_COUNT).mapToObj(i -> {
+            int key = i % KEY_COUNT;
+            switch (i / KEY_COUNT) {
+            case 0:
+                return new KeyedEvent<>(key, Calculator.event(NUMBER, (char) ('0' + key % 10)));
+            case 1:
+                return new KeyedEvent<>(key, Calculator.event(OPERATION, '+'));
+            case 2:
+                return new KeyedEvent<>(key, Calculator.event(NUMBER, '1'));
+            default:
+                return new KeyedEvent<>(key, new StateMachineEvent(key % 10 == 0 ? OFF : EQUALS));
+            }
+        }).iterator();
+    }
+
+    private StateMachine stuckMachine() {
+        State[] states = new State[2];
+        StateMachine[] stateMachine = new StateMachine[1];
+        states[0] = new State(event -> {
+            if (event.getEventSignal() == INIT) {
+                stateMachine[0].transitionTo(states[1]);
+            }
+            return null;
+        }, "TopState");
+        states[1] = new State(event -> states[0], "StateOperand1");
+        stateMachine[0] = new StateMachine(states[0]);
+        stateMachine[0].initialize();
+        return stateMachine[0];
+    }
+}
@@ -0,0 +1,317 @@
+package org.nting.statemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.nting.statemachine.Calculator.CalculatorCharacterSignal.NUMBER;
+import static org.nting.statemachine.Calculator.CalculatorCharacterSignal.OPERATION;
+import static org.nting.statemachine.Calculator.CalculatorSignal.EQUALS;
+import static org.nting.statemachine.Calculator.CalculatorSignal.OFF;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Maps;
+
+public class ReplicationTest {
+
+    private final Map<String, Calculator> followerCalculators = Maps.newConcurrentMap();
+    private ExecutorService executorService;
+
+    @Before
+    public void setUp() {
+        executorService = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void testLoopback() throws Exception {
+        LoopbackReplicationTransport transport = new LoopbackReplicationTransport();
+        ReplicationPrimary primary = new ReplicationPrimary(transport);
+        ReplicationFollower follower = new ReplicationFollower(transport, this::createReplica);
+        Future<?> following = follower.start(executorService);
+        assertEquals(-1, follower.getReplicationLagMillis());
+
+        Calculator a = attach(primary, "a");
+        Calculator b = attach(primary, "b");
+        a.dispatch(NUMBER, '1');
+        a.dispatch(NUMBER, '5');
+        a.dispatch(OPERATION, '+');
+        primary.flush();
+        a.dispatch(NUMBER, '2');
+        a.dispatch(NUMBER, '7');
+        a.dispatch(EQUALS);
+        b.dispatch(OFF);
+        primary.flush();
+
+        awaitApplied(follower, primary.getRecordedCount());
+        assertEquals(42.0, a.result, 0.0);
+        assertReplicated(a, follower, "a");
+        assertReplicated(b, follower, "b");
+        assertNull(followerCalculators.get("a").result);// no action runs on the follower
+        assertTrue(follower.getReplicationLagMillis() >= 0);
+        assertEquals(0, follower.getReplicationLag());
+
+        transport.close();
+        following.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testSendFailure() throws Exception {
+        LoopbackReplicationTransport transport = new LoopbackReplicationTransport();
+        AtomicBoolean failing = new AtomicBoolean();
+        ReplicationPrimary primary = new ReplicationPrimary(failingTransport(transport, failing));
+        ReplicationFollower follower = new ReplicationFollower(transport, this::createReplica);
+
+        Calculator calculator = attach(primary, "a");
+        calculator.dispatch(NUMBER, '1');
+        failing.set(true);
+        try {
+            primary.flush();
+            fail();
+        } catch (IOException e) {
+            assertEquals(primary.getRecordedCount(), primary.getUnsentTransitionCount());
+        }
+        calculator.dispatch(OPERATION, '+');
+        failing.set(false);
+        primary.flush();
+
+        assertEquals(0, primary.getUnsentTransitionCount());
+        for (byte[] batch = transport.poll(); batch != null; batch = transport.poll()) {
+            follower.apply(batch);
+        }
+        assertEquals(primary.getRecordedCount(), follower.getAppliedCount());
+        assertReplicated(calculator, follower, "a");
+    }
+
+    @Test
+    public void testSendFailure_Coalesced() throws Exception {
+        LoopbackReplicationTransport transport = new LoopbackReplicationTransport();
+        AtomicBoolean failing = new AtomicBoolean(true);
+        ReplicationPrimary primary = new ReplicationPrimary(failingTransport(transport, failing));
+        ReplicationFollower follower = new ReplicationFollower(transport, this::createReplica);
+
+        Calculator calculator = attach(primary, "a");
+        for (int i = 0; i < 1000; i++) {// heartbeats while the transport is down
+            if (i == 500) {
+                calculator.dispatch(OPERATION, '+');
+            }
+            try {
+                primary.flush();
+                fail();
+            } catch (IOException e) {
+                assertEquals(i < 500 ? 1 : 2, primary.getUnsentTransitionCount());
+            }
+        }
+        failing.set(false);
+        primary.flush();
+
+        follower.apply(transport.poll());
+        assertNull(transport.poll());// a single batch
+        assertEquals(primary.getRecordedCount(), follower.getAppliedCount());
+        assertReplicated(calculator, follower, "a");
+    }
+
+    @Test
+    public void testAttachAgain() throws Exception {
+        LoopbackReplicationTransport transport = new LoopbackReplicationTransport();
+        ReplicationPrimary primary = new ReplicationPrimary(transport);
+        ReplicationFollower follower = new ReplicationFollower(transport, this::createReplica);
+
+        // Detached, then an other machine is attached with the same key.
+        Calculator calculator = new Calculator();
+        Subscription subscription = primary.attach("k", calculator.getStateMachine());
+        calculator.dispatch(OFF);
+        applyAll(primary, transport, follower);
+        subscription.unsubscribe();
+        applyAll(primary, transport, follower);
+        assertNull(follower.getStateMachine("k"));
+
+        Calculator replacement = attach(primary, "k");
+        replacement.dispatch(NUMBER, '1');
+        applyAll(primary, transport, follower);
+        assertEquals("StateOperand1", follower.getStateMachine("k").getState().stateName);
+        assertEquals(0, follower.getReplicationLag());
+
+        // Replaced without detaching the previous machine, whose later transitions are ignored.
+        Calculator other = attach(primary, "k");
+        other.dispatch(OFF);
+        replacement.dispatch(OFF);
+        replacement.reset();
+        replacement.dispatch(NUMBER, '2');
+        applyAll(primary, transport, follower);
+        assertReplicated(other, follower, "k");
+        assertEquals(2, follower.getKeyIdCount());
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        LoopbackReplicationTransport transport = new LoopbackReplicationTransport();
+        ReplicationPrimary primary = new ReplicationPrimary(transport);
+        ReplicationFollower follower = new ReplicationFollower(transport, this::createReplica);
+        StateMachinePool<Calculator> pool = new StateMachinePool<>(Calculator::new, Calculator::reset, 1);
+
+        for (int i = 0; i < 100; i++) {
+            Calculator calculator = pool.acquire();
+            primary.attach("calculator" + i, calculator.getStateMachine());
+            calculator.dispatch(OPERATION, '+');
+            applyAll(primary, transport, follower);
+            assertReplicated(calculator, follower, "calculator" + i);
+
+            pool.release(calculator);// reset detaches the machine
+            applyAll(primary, transport, follower);
+            assertNull(follower.getStateMachine("calculator" + i));
+        }
+        assertEquals(1, pool.getCreatedCount());
+        // Both dictionaries of the stream stay small, the states of all machines share their names.
+        assertEquals(1, follower.getKeyIdCount());
+        assertEquals(2, follower.getStateNameCount());
+    }
+
+    @Test
+    public void testDuplicateAndStaleTransitions() throws Exception {
+        LoopbackReplicationTransport transport = new LoopbackReplicationTransport();
+        ReplicationPrimary primary = new ReplicationPrimary(transport);
+        ReplicationFollower follower = new ReplicationFollower(transport, this::createReplica);
+
+        // The machine dispatches on an other thread after the first dispatch, so its transitions are recorded in two
+        // buffers, and the newer one may be encoded first.
+        Calculator calculator = attach(primary, "a");
+        calculator.dispatch(NUMBER, '1');
+        executorService.submit(() -> calculator.dispatch(OPERATION, '+')).get(5, TimeUnit.SECONDS);
+        primary.flush();
+        byte[] batch = transport.poll();
+        follower.apply(batch);
+        assertReplicated(calculator, follower, "a");
+
+        follower.apply(batch);// e.g. resent after a failure which happened after the send
+        assertEquals(primary.getRecordedCount(), follower.getAppliedCount());
+        assertReplicated(calculator, follower, "a");
+    }
+
+    @Test
+    public void testSocket() throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Future<Socket> accepted = executorService.submit(serverSocket::accept);
+            SocketReplicationTransport primaryTransport = new SocketReplicationTransport(
+                    new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort()));
+            SocketReplicationTransport followerTransport = new SocketReplicationTransport(
+                    accepted.get(5, TimeUnit.SECONDS));
+
+            ReplicationPrimary primary = new ReplicationPrimary(primaryTransport);
+            ReplicationFollower follower = new ReplicationFollower(followerTransport, this::createReplica);
+            Future<?> following = follower.start(executorService);
+
+            ScheduledExecutorService scheduledExecutorService = Executors.newSingleThreadScheduledExecutor();
+            ScheduledFuture<?> flushing = primary.scheduleFlush(scheduledExecutorService, 1, TimeUnit.MILLISECONDS);
+            try {
+                Calculator[] calculators = new Calculator[10];
+                for (int i = 0; i < calculators.length; i++) {
+                    calculators[i] = attach(primary, "calculator" + i);
+                }
+                for (int i = 0; i < 1000; i++) {
+                    Calculator calculator = calculators[i % calculators.length];
+                    calculator.dispatch(NUMBER, (char) ('0' + i % 10));
+                    calculator.dispatch(OPERATION, '*');
+                    calculator.dispatch(NUMBER, '2');
+                    calculator.dispatch(EQUALS);
+                }
+
+                awaitApplied(follower, primary.getRecordedCount());
+                for (int i = 0; i < calculators.length; i++) {
+                    assertReplicated(calculators[i], follower, "calculator" + i);
+                }
+            } finally {
+                flushing.cancel(false);
+                scheduledExecutorService.shutdown();
+            }
+
+            primaryTransport.close();
+            following.get(5, TimeUnit.SECONDS);
+            followerTransport.close();
+        }
+    }
+
+    private static ReplicationTransport failingTransport(LoopbackReplicationTransport transport,
+            AtomicBoolean failing) {
+        return new ReplicationTransport() {
+            @Override
+            public void send(byte[] batch) throws IOException {
+                if (failing.get()) {
+                    throw new IOException("Connection lost");
+                }
+                transport.send(batch);
+            }
+
+            @Override
+            public byte[] receive() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void close() {
+                transport.close();
+            }
+        };
+    }
+
+    private static void applyAll(ReplicationPrimary primary, LoopbackReplicationTransport transport,
+            ReplicationFollower follower) throws IOException {
+        primary.flush();
+        for (byte[] batch = transport.poll(); batch != null; batch = transport.poll()) {
+            follower.apply(batch);
+        }
+    }
+
+    private Calculator attach(ReplicationPrimary primary, String key) {
+        Calculator calculator = new Calculator();
+        primary.attach(key, calculator.getStateMachine());
+        return calculator;
+    }
+
+    private ReplicationFollower.Replica createReplica(String key) {
+        Calculator calculator = new Calculator();
+        followerCalculators.put(key, calculator);
+        return new ReplicationFollower.Replica(calculator.getStateMachine(), calculator::stateOf);
+    }
+
+    private void assertReplicated(Calculator calculator, ReplicationFollower follower, String key) {
+        StateMachine primaryMachine = calculator.getStateMachine();
+        StateMachine followerMachine = follower.getStateMachine(key);
+        assertEquals(primaryMachine.getState().stateName, followerMachine.getState().stateName);
+        assertEquals(namesOf(primaryMachine.getHistoryStates()), namesOf(followerMachine.getHistoryStates()));
+    }
+
+    private static Map<String, String> namesOf(Map<State, State> historyStates) {
+        Map<String, String> names = Maps.newHashMap();
+        historyStates.forEach((parent, state) -> names.put(parent.stateName, state.stateName));
+        return names;
+    }
+
+    private static void awaitApplied(ReplicationFollower follower, long count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (follower.getAppliedCount() < count && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(count, follower.getAppliedCount());
+    }
+}
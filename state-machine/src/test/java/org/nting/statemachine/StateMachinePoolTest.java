@@ -0,0 +1,74 @@
+package org.nting.statemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.nting.statemachine.Calculator.CalculatorCharacterSignal.NUMBER;
+import static org.nting.statemachine.Calculator.CalculatorCharacterSignal.OPERATION;
+import static org.nting.statemachine.Calculator.CalculatorSignal.EQUALS;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+
+public class StateMachinePoolTest {
+
+    @Test
+    public void testReuse() {
+        StateMachinePool<Calculator> pool = new StateMachinePool<>(Calculator::new, Calculator::reset, 2);
+
+        Calculator calculator = pool.acquire();
+        calculate(calculator, '4', '2');
+        assertEquals(6.0, calculator.result, 0.0);
+        pool.release(calculator);
+
+        Calculator reused = pool.acquire();
+        assertSame(calculator, reused);
+        assertNull(reused.result);
+        assertEquals("StateOperand1", reused.getStateMachine().getState().stateName);
+        calculate(reused, '1', '5');
+        assertEquals(6.0, reused.result, 0.0);
+
+        assertNotSame(reused, pool.acquire());
+        assertEquals(2, pool.getCreatedCount());
+        assertEquals(1, pool.getReusedCount());
+    }
+
+    @Test
+    public void testSharedAcrossThreads() throws Exception {
+        StateMachinePool<Calculator> pool = new StateMachinePool<>(Calculator::new, Calculator::reset, 1, 0);
+
+        Calculator calculator = pool.acquire();
+        pool.release(calculator);
+        pool.release(new Calculator()); // Pool is full, left to the GC
+
+        assertSame(calculator, CompletableFuture.supplyAsync(pool::acquire).get());
+        assertEquals(1, pool.getReusedCount());
+    }
+
+    @Test
+    public void testThreadLocalInstancesBounded() throws Exception {
+        StateMachinePool<Calculator> pool = new StateMachinePool<>(Calculator::new, Calculator::reset, 2, 4);
+
+        Calculator calculator = new Calculator();
+        CompletableFuture.runAsync(() -> {
+            pool.release(calculator);
+            pool.release(new Calculator());
+            pool.release(new Calculator()); // Over the capacity, even with room in the thread-local cache
+        }).get();
+        assertEquals(2, pool.getIdleCount());
+
+        // Taken from the cache of the other thread
+        assertSame(calculator, pool.acquire());
+        assertEquals(1, pool.getIdleCount());
+        assertEquals(0, pool.getCreatedCount());
+    }
+
+    private void calculate(Calculator calculator, char operand1, char operand2) {
+        calculator.dispatch(NUMBER, operand1);
+        calculator.dispatch(OPERATION, '+');
+        calculator.dispatch(NUMBER, operand2);
+        calculator.dispatch(EQUALS);
+    }
+}
@@ -1,16 +1,20 @@
 package org.nting.statemachine;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.nting.statemachine.StateMachineSignal.INIT;
 import static org.nting.statemachine.StateMachineTest.KeySignal.KEY_1;
 import static org.nting.statemachine.StateMachineTest.KeySignal.KEY_2;
 import static org.nting.statemachine.StateMachineTest.KeySignal.KEY_3;
 import static org.nting.statemachine.StateMachineTest.KeySignal.KEY_4;
 
+import java.util.List;
+
 import org.junit.Before;
 import org.junit.Test;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 
 public class StateMachineTest {
 
@@ -240,4 +244,23 @@ public class StateMachineTest {
         assertEquals(state111, stateMachine.getState()); // Transition to the state11 (+ an initial transition)
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testStateMachine_Reset() {
+        stateMachine.initialize();
+        stateMachine.dispatch(new StateMachineEvent(KEY_4));
+        stateMachine.dispatch(new StateMachineEvent(KEY_2));
+        assertEquals(state211, stateMachine.getState());
+        List<State> notifiedStates = Lists.newArrayList();
+        stateMachine.subscribe(notifiedStates::add);
+
+        stateMachine.reset();
+        assertEquals(state111, stateMachine.getState());
+
+        // Behaves as a fresh state machine
+        stateMachine.dispatch(new StateMachineEvent(KEY_2));
+        assertEquals(state211, stateMachine.getState());
+        stateMachine.dispatch(new StateMachineEvent(KEY_1));
+        assertEquals(state111, stateMachine.getState());
+        assertTrue(notifiedStates.isEmpty());
+    }
+}
@@ -0,0 +1,93 @@
+package org.nting.statemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.nting.statemachine.Calculator.CalculatorCharacterSignal.NUMBER;
+import static org.nting.statemachine.Calculator.CalculatorCharacterSignal.OPERATION;
+import static org.nting.statemachine.Calculator.CalculatorSignal.EQUALS;
+
+import java.io.File;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+public class TransitionRecorderTest {
+
+    @Test
+    public void testRingBuffer() {
+        TransitionRecorder transitionRecorder = new TransitionRecorder(3);
+        State state = new State(event -> null, "State");
+        assertTrue(transitionRecorder.dump().isEmpty());
+
+        for (int i = 0; i < 5; i++) {
+            transitionRecorder.recordDispatch(state, StateMachineSignal.values()[i % 4]);
+        }
+
+        List<TransitionRecorder.Record> records = transitionRecorder.dump();
+        assertEquals(3, records.size());
+        assertEquals(StateMachineSignal.ENTRY, records.get(0).eventSignal); // Oldest first
+        assertEquals(StateMachineSignal.EMPTY, records.get(2).eventSignal);
+        assertNull(records.get(2).targetState);
+
+        transitionRecorder.clear();
+        assertTrue(transitionRecorder.dump().isEmpty());
+    }
+
+    @Test
+    public void testStateMachineRecordsTransitions() {
+        Calculator calculator = new Calculator();
+        calculator.dispatch(NUMBER, '1');
+
+        List<TransitionRecorder.Record> records = calculator.getStateMachine().getTransitionRecorder().dump();
+        assertEquals(ImmutableList.of("TRANSITION TopState->StateOn", "TRANSITION StateOn->StateOperand1",
+                "DISPATCH StateOperand1->null", "TRANSITION StateOperand1->StateOperand1"),
+                records.stream().map(this::describe).collect(Collectors.toList()));
+        assertEquals(NUMBER, records.get(3).eventSignal);
+    }
+
+    @Test
+    public void testFlightRecorderEvents() throws Exception {
+        File file = File.createTempFile("state-machine", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("org.nting.statemachine.Dispatch");
+            recording.enable("org.nting.statemachine.Transition");
+            recording.start();
+
+            Calculator calculator = new Calculator();
+            calculator.dispatch(NUMBER, '1');
+            calculator.dispatch(OPERATION, '+');
+            calculator.dispatch(NUMBER, '2');
+            calculator.dispatch(EQUALS);
+
+            recording.stop();
+            recording.dump(file.toPath());
+        }
+
+        List<RecordedEvent> recordedEvents = RecordingFile.readAllEvents(file.toPath());
+        List<RecordedEvent> dispatchEvents = recordedEvents.stream()
+                .filter(event -> event.getEventType().getName().equals("org.nting.statemachine.Dispatch"))
+                .collect(Collectors.toList());
+        assertEquals(4, dispatchEvents.size());
+        RecordedEvent equalsEvent = dispatchEvents.get(3);
+        assertEquals("EQUALS", equalsEvent.getString("signal"));
+        assertEquals("StateOperand2", equalsEvent.getString("state"));
+        assertEquals("StateResult", equalsEvent.getString("finalState"));
+        assertEquals(1, equalsEvent.getInt("depth"));
+        assertTrue(recordedEvents.stream()
+                .anyMatch(event -> event.getEventType().getName().equals("org.nting.statemachine.Transition")));
+        file.delete();
+    }
+
+    private String describe(TransitionRecorder.Record record) {
+        return record.kind + " " + record.sourceState.stateName + "->"
+                + (record.targetState != null ? record.targetState.stateName : null);
+    }
+}